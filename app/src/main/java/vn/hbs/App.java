@@ -2,6 +2,7 @@ package vn.hbs;
 
 import android.app.Application;
 import vn.hbs.lib.cache.ImageCache;
+import vn.hbs.lib.debug.PipelineTrace;
 import vn.hbs.lib.http.ImageFetcher;
 
 /**
@@ -15,6 +16,8 @@ public class App extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
+        //Trace the image pipeline in debug builds, dump it with PipelineTrace.dumpToLog()
+        PipelineTrace.setEnabled(BuildConfig.DEBUG);
         //Init ImageFetcher
         ImageCache.ImageCacheParams cacheParams = new ImageCache.ImageCacheParams(this, IMAGE_CACHE_DIR);
         cacheParams.setDiskCacheEnabled(true);
@@ -18,6 +18,7 @@ import vn.hbs.R;
 import vn.hbs.lib.debug.DebugLog;
 import vn.hbs.lib.http.ImageFetcher;
 import vn.hbs.lib.http.ImageFetcherListener;
+import vn.hbs.lib.http.ScrollScheduler;
 import vn.hbs.lib.util.NetworkUtils;
 
 /**
@@ -50,11 +51,14 @@ public class MainActivity extends AppCompatActivity implements ImageFetcherListe
         mRecyclerView.setLayoutManager(new GridLayoutManager(this, GRID_COLUMN_NUM));
         MyAdapter adapter = new MyAdapter(this, ImageProvider.getImageUrlList());
         mRecyclerView.setAdapter(adapter);
+        //Only serve cached images while flinging, fetch the visible ones once it slows down
+        mRecyclerView.addOnScrollListener(new ScrollScheduler(mImageFetcher));
     }
 
     @Override
     public void onImageLoaded(String url, boolean success, int cacheState) {
-        DebugLog.i(TAG, String.format("Image loaded %s with status %s and cache state %s", "", success, cacheState));
+        DebugLog.i(TAG, "Image loaded %s with status %s and cache state %s",
+                url, success, cacheState);
     }
 
     @Override
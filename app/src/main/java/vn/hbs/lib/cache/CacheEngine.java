@@ -0,0 +1,671 @@
+package vn.hbs.lib.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import vn.hbs.lib.debug.DebugLog;
+import vn.hbs.lib.util.SlabBuffer;
+
+/**
+ * The cache policy behind {@link ImageCache}, in plain Java so that it runs and can be load
+ * tested on a server JVM. It is generic over the values of its memory tier and knows nothing
+ * of bitmaps, the Android adapter supplies their size and how they are reused.
+ * <ul>
+ *     <li>memory tier: values bounded by the total of their {@link Sizer} sizes</li>
+ *     <li>pool: values evicted or removed from the memory tier, kept softly for reuse</li>
+ *     <li>encoded tier: encoded bytes in off-heap slab buffers</li>
+ *     <li>disk tier: a {@link DiskLruCache} filled by a write-behind {@link DiskWriteQueue}</li>
+ * </ul>
+ * Opening, clearing, flushing and closing the disk tier run on the maintenance executor, in
+ * the order they are requested, so it should be serial. Closing waits there for the disk
+ * writer, so the executor should not be shared with unrelated work. Every other method is
+ * thread safe and doesn't block on disk I/O, except the disk reads.
+ */
+public class CacheEngine<V> {
+    private static final String TAG = CacheEngine.class.getSimpleName();
+
+    // Every entry of the disk cache has a single file
+    private static final int DISK_CACHE_APP_VERSION = 1;
+    private static final int DISK_CACHE_VALUE_COUNT = 1;
+    private static final int DISK_CACHE_INDEX = 0;
+
+    /**
+     * Measures the values of the memory tier, in the unit of its budget
+     */
+    public interface Sizer<V> {
+        int sizeOf(String key, V value);
+    }
+
+    /**
+     * Selects values, e.g. a reusable value matching a request
+     */
+    public interface Matcher<V> {
+        boolean matches(V value);
+    }
+
+    /**
+     * Prepares the encoded bytes written to the disk tier, e.g. to transcode them. Called on
+     * the writer thread.
+     */
+    public interface StorageEncoder {
+        /**
+         * @param original The bytes to write, still owned by the caller
+         * @return The bytes to store, which the caller releases: the original retained or new
+         *         ones with their metadata
+         */
+        EncodedImage encode(String data, EncodedImage original);
+    }
+
+    private final Params<V> mParams;
+    private final Executor mMaintenanceExecutor;
+    private final SizedLruCache<V> mMemoryCache;
+    private final ReusePool<V> mReusePool;
+    private final EncodedMemoryCache mEncodedCache;
+    private final DiskWriteQueue mDiskWriteQueue = new DiskWriteQueue(new DiskWriteQueue.Writer() {
+        @Override
+        public void write(List<DiskWriteQueue.PendingWrite> batch) {
+            writeToDisk(batch);
+        }
+    });
+
+    private final Runnable mFlushJournalTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mDiskCacheLock) {
+                if (mDiskLruCache != null) {
+                    try {
+                        mDiskLruCache.flush();
+                        DebugLog.d(TAG, "Disk cache flushed");
+                    } catch (IOException e) {
+                        DebugLog.e(TAG, "Flush - " + e);
+                    } catch (IllegalStateException e) {
+                        // Closed meanwhile
+                    }
+                }
+            }
+        }
+    };
+
+    // Written under the lock, volatile for the peeks that don't take it
+    private final Object mDiskCacheLock = new Object();
+    private volatile DiskLruCache mDiskLruCache;
+    private volatile boolean mDiskCacheStarting = true;
+    // An open is queued on the maintenance executor, guarded by mDiskCacheLock
+    private boolean mDiskCacheOpenPending = false;
+
+    /**
+     * @param params The tiers to set up, read once
+     * @param maintenanceExecutor Runs the disk tier maintenance, in order
+     */
+    public CacheEngine(Params<V> params, Executor maintenanceExecutor) {
+        this.mParams = params;
+        this.mMaintenanceExecutor = maintenanceExecutor;
+
+        if (params.memoryCacheSize > 0) {
+            final Matcher<V> reuseFilter = params.reuseFilter;
+            mReusePool = reuseFilter != null ? new ReusePool<V>() : null;
+            mMemoryCache = new SizedLruCache<V>(params.memoryCacheSize, params.sizer,
+                    mReusePool == null ? null : new SizedLruCache.RemovalListener<V>() {
+                        @Override
+                        public void onRemoved(String key, V value, boolean replaced) {
+                            // A replaced value may well still be shown, e.g. when two
+                            // requests of the same image both put their result
+                            if (!replaced && reuseFilter.matches(value)) {
+                                mReusePool.offer(value);
+                            }
+                        }
+                    });
+        } else {
+            mMemoryCache = null;
+            mReusePool = null;
+        }
+
+        mEncodedCache = params.encodedCacheSize > 0
+                ? new EncodedMemoryCache(params.encodedCacheSize) : null;
+    }
+
+    public boolean hasMemoryCache() {
+        return mMemoryCache != null;
+    }
+
+    /**
+     * Return the size of the memory tier, 0 if there is none
+     */
+    public int getMemoryCacheSize() {
+        return mMemoryCache != null ? mMemoryCache.size() : 0;
+    }
+
+    /**
+     * Return the budget of the memory tier, 0 if there is none
+     */
+    public int getMemoryCacheMaxSize() {
+        return mMemoryCache != null ? mMemoryCache.maxSize() : 0;
+    }
+
+    public V getFromMemory(String data) {
+        return mMemoryCache != null ? mMemoryCache.get(data) : null;
+    }
+
+    /**
+     * Get many values from the memory tier under a single acquisition of its lock
+     *
+     * @return The values found, keyed by identifier
+     */
+    public Map<String, V> getAllFromMemory(Collection<String> data) {
+        if (mMemoryCache == null) {
+            return new HashMap<String, V>();
+        }
+        return mMemoryCache.getAll(data);
+    }
+
+    public void putInMemory(String data, V value) {
+        if (mMemoryCache != null) {
+            mMemoryCache.put(data, value);
+        }
+    }
+
+    /**
+     * Take a value evicted from the memory tier out of the pool, to reuse its memory. A pooled
+     * value may still be in use, e.g. shown by a view, the matcher must only accept the ones
+     * that are not.
+     *
+     * @return The first pooled value the matcher accepts, or null
+     */
+    public V takeReusable(Matcher<V> matcher) {
+        if (mReusePool == null || mReusePool.isEmpty()) {
+            return null;
+        }
+        return mReusePool.take(matcher);
+    }
+
+    /**
+     * Keep the encoded bytes of an image in memory, if the encoded tier is enabled
+     *
+     * @param buffer The encoded bytes, retained by the cache and not to be written afterwards
+     * @param metadata The metadata, or null if unknown
+     */
+    public void putEncoded(String data, SlabBuffer buffer, String metadata) {
+        if (mEncodedCache != null) {
+            mEncodedCache.put(data, buffer, metadata);
+        }
+    }
+
+    /**
+     * Return encoded bytes kept in memory, by the encoded tier or because they are waiting to
+     * be written to disk. This doesn't touch the filesystem or the disk cache lock.
+     *
+     * @return The image, whose buffer is retained for the caller, or null
+     */
+    public EncodedImage getEncoded(String data) {
+        final EncodedImage encoded = mEncodedCache != null ? mEncodedCache.get(data) : null;
+        if (encoded != null) {
+            return encoded;
+        }
+        final DiskWriteQueue.PendingWrite pending = mDiskWriteQueue.get(data);
+        return pending != null ? new EncodedImage(pending.buffer, pending.metadata) : null;
+    }
+
+    public boolean hasEncodedCache() {
+        return mEncodedCache != null;
+    }
+
+    /**
+     * Queue encoded bytes for the disk tier. They are written by a background writer thread,
+     * through the storage encoder, and served by {@link #getEncoded(String)} meanwhile.
+     *
+     * @param buffer The encoded bytes, retained by the queue and not to be written afterwards
+     * @param metadata The metadata to keep in the disk cache index, or null
+     * @param cost What it would cost to fetch the bytes again. Low cost writes are dropped
+     *             first when the queue is full.
+     * @param expiresAt The expiry time in milliseconds since the epoch, 0 for never
+     */
+    public void putOnDisk(String data, SlabBuffer buffer, String metadata, long cost,
+                          long expiresAt) {
+        mDiskWriteQueue.enqueue(data, buffer, metadata, cost, expiresAt);
+    }
+
+    /**
+     * Hold the disk writes back, see {@link DiskWriteQueue}
+     */
+    public void setDiskWritesPaused(boolean paused) {
+        mDiskWriteQueue.setPaused(paused);
+    }
+
+    /**
+     * Return the disk cache, or null while it is starting or if it couldn't be opened
+     */
+    public DiskLruCache getDiskLruCache() {
+        synchronized (mDiskCacheLock) {
+            return mDiskLruCache;
+        }
+    }
+
+    /**
+     * Get from the disk tier, waiting for it to be opened if needed
+     *
+     * @return The snapshot, to be closed by the caller, or null if not found
+     */
+    public DiskLruCache.Snapshot getFromDisk(String data) throws IOException {
+        return get(awaitDiskLruCache(), data);
+    }
+
+    /**
+     * Get from the disk tier, without waiting if it is not open yet
+     *
+     * @return The snapshot, to be closed by the caller, or null if not found or still starting
+     */
+    public DiskLruCache.Snapshot peekFromDisk(String data) throws IOException {
+        final DiskLruCache diskLruCache;
+        synchronized (mDiskCacheLock) {
+            diskLruCache = mDiskCacheStarting ? null : mDiskLruCache;
+        }
+        return get(diskLruCache, data);
+    }
+
+    private static DiskLruCache.Snapshot get(DiskLruCache diskLruCache, String data)
+            throws IOException {
+        if (diskLruCache == null) {
+            return null;
+        }
+        try {
+            return diskLruCache.get(hashKeyForDisk(data));
+        } catch (IllegalStateException e) {
+            // Closed meanwhile
+            return null;
+        }
+    }
+
+    /**
+     * Get many entries from the disk tier, whose READ records are appended to the journal
+     * together, waiting for it to be opened if needed
+     *
+     * @return The snapshots found keyed by identifier, each to be closed by the caller
+     */
+    public Map<String, DiskLruCache.Snapshot> getAllFromDisk(Collection<String> data)
+            throws IOException {
+        final Map<String, DiskLruCache.Snapshot> snapshots =
+                new HashMap<String, DiskLruCache.Snapshot>();
+        final DiskLruCache diskLruCache = awaitDiskLruCache();
+        if (diskLruCache == null || data.isEmpty()) {
+            return snapshots;
+        }
+
+        final Map<String, String> keys = new HashMap<String, String>();
+        for (String item : data) {
+            keys.put(hashKeyForDisk(item), item);
+        }
+        final Map<String, DiskLruCache.Snapshot> found;
+        try {
+            found = diskLruCache.getAll(keys.keySet());
+        } catch (IllegalStateException e) {
+            // Closed meanwhile
+            return snapshots;
+        }
+        for (Map.Entry<String, DiskLruCache.Snapshot> entry : found.entrySet()) {
+            snapshots.put(keys.get(entry.getKey()), entry.getValue());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Return the metadata of an entry of the disk tier from its in-memory index. This takes no
+     * lock, so it doesn't wait for the disk tier to open, trim or commit.
+     *
+     * @return The metadata, null if unknown or while the disk tier is starting
+     */
+    public String peekMetadata(String data) {
+        final DiskLruCache diskLruCache = mDiskCacheStarting ? null : mDiskLruCache;
+        return diskLruCache != null ? diskLruCache.getMetadata(hashKeyForDisk(data)) : null;
+    }
+
+    /**
+     * Return the long term access count of an entry of the disk tier from its in-memory index
+     *
+     * @return The access count, 0 if unknown or while the disk tier is starting
+     */
+    public double getAccessFrequency(String data) {
+        synchronized (mDiskCacheLock) {
+            if (mDiskCacheStarting || mDiskLruCache == null || mDiskLruCache.isClosed()) {
+                return 0;
+            }
+            return mDiskLruCache.getFrequency(hashKeyForDisk(data));
+        }
+    }
+
+    /**
+     * Return the file of an entry of the disk tier, which may not exist. This doesn't need
+     * the disk tier to be open.
+     */
+    public File getCleanFile(String data) {
+        return DiskLruCache.getCleanFile(mParams.diskCacheDir, hashKeyForDisk(data),
+                DISK_CACHE_INDEX);
+    }
+
+    /**
+     * Run a task on the maintenance executor, ordered with the disk tier maintenance
+     */
+    public void execute(Runnable task) {
+        mMaintenanceExecutor.execute(task);
+    }
+
+    /**
+     * Empty the memory, pool and encoded tiers, e.g. when the system is low on memory
+     */
+    public void evictMemory() {
+        if (mMemoryCache != null) {
+            mMemoryCache.evictAll();
+        }
+        if (mReusePool != null) {
+            mReusePool.clear();
+        }
+        if (mEncodedCache != null) {
+            mEncodedCache.evictAll();
+        }
+    }
+
+    /**
+     * Open the disk tier on the maintenance executor. Disk reads wait until it is done. Called
+     * after {@link #closeCache()}, it opens the disk tier again once the close is done.
+     */
+    public void initDiskCache() {
+        synchronized (mDiskCacheLock) {
+            mDiskCacheOpenPending = true;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                openDiskCache();
+            }
+        });
+    }
+
+    /**
+     * Empty every tier. The disk tier is deleted and opened again on the maintenance executor.
+     */
+    public void clearCache() {
+        evictMemory();
+        mDiskWriteQueue.clear();
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiskLruCache diskLruCache;
+                synchronized (mDiskCacheLock) {
+                    diskLruCache = mDiskLruCache;
+                    if (diskLruCache == null || diskLruCache.isClosed()) {
+                        return;
+                    }
+                    mDiskCacheStarting = true;
+                    mDiskLruCache = null;
+                }
+                try {
+                    diskLruCache.delete();
+                    DebugLog.d(TAG, "Disk cache clear !");
+                } catch (IOException e) {
+                    DebugLog.e(TAG, "clearCache - " + e);
+                }
+                openDiskCache();
+            }
+        });
+    }
+
+    /**
+     * Have what is queued for the disk tier written and its journal flushed. The writer thread
+     * does both, the maintenance executor doesn't wait for them.
+     */
+    public void flushCache() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mDiskWriteQueue.requestFlush(mFlushJournalTask);
+            }
+        });
+    }
+
+    /**
+     * Write what is queued for the disk tier and close it, on the maintenance executor
+     */
+    public void closeCache() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mDiskWriteQueue.shutdown();
+                synchronized (mDiskCacheLock) {
+                    if (mDiskLruCache != null) {
+                        try {
+                            if (!mDiskLruCache.isClosed()) {
+                                mDiskLruCache.close();
+                                mDiskLruCache = null;
+                                DebugLog.d(TAG, "Disk cache closed");
+                            }
+                        } catch (IOException e) {
+                            DebugLog.e(TAG, "Close - " + e);
+                        }
+                    }
+                    if (mDiskCacheOpenPending) {
+                        // Disk reads wait for the open queued after this close, not miss
+                        mDiskCacheStarting = true;
+                    }
+                }
+            }
+        });
+    }
+
+    private void openDiskCache() {
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+                final File diskCacheDir = mParams.diskCacheDir;
+                if (diskCacheDir != null) {
+                    if (!diskCacheDir.exists()) {
+                        diskCacheDir.mkdirs();
+                    }
+                    if (diskCacheDir.getUsableSpace() > mParams.diskCacheSize) {
+                        try {
+                            EvictionPolicy policy = mParams.diskEvictionPolicy;
+                            if (policy == null) {
+                                policy = new LruEvictionPolicy();
+                            }
+                            mDiskLruCache = DiskLruCache.open(diskCacheDir,
+                                    DISK_CACHE_APP_VERSION, DISK_CACHE_VALUE_COUNT,
+                                    mParams.diskCacheSize, policy);
+                            mDiskLruCache.setDurability(mParams.diskCacheDurability);
+                            DebugLog.d(TAG, "Finish initialization lru disk cache !");
+                        } catch (final IOException e) {
+                            DebugLog.e(TAG, "initDiskCache - " + e);
+                        }
+                    }
+                }
+            }
+            mDiskCacheStarting = false;
+            mDiskCacheOpenPending = false;
+            mDiskCacheLock.notifyAll();
+        }
+    }
+
+    private DiskLruCache awaitDiskLruCache() {
+        synchronized (mDiskCacheLock) {
+            while (mDiskCacheStarting) {
+                try {
+                    mDiskCacheLock.wait();
+                } catch (InterruptedException e) {}
+            }
+            return mDiskLruCache != null && !mDiskLruCache.isClosed() ? mDiskLruCache : null;
+        }
+    }
+
+    /**
+     * Write a batch from the write-behind queue, on its writer thread. Entries already in the
+     * disk cache are skipped and the journal is flushed once for the whole batch.
+     */
+    private void writeToDisk(List<DiskWriteQueue.PendingWrite> batch) {
+        final DiskLruCache diskLruCache = awaitDiskLruCache();
+        if (diskLruCache == null) {
+            return;
+        }
+
+        final ArrayList<String> keys = new ArrayList<String>(batch.size());
+        for (DiskWriteQueue.PendingWrite write : batch) {
+            keys.add(hashKeyForDisk(write.data));
+        }
+
+        try {
+            final Map<String, DiskLruCache.Editor> editors = diskLruCache.createAll(keys);
+            for (int i = 0; i < batch.size(); i++) {
+                final DiskLruCache.Editor editor = editors.get(keys.get(i));
+                if (editor != null) {
+                    writeEntry(editor, batch.get(i));
+                }
+            }
+            diskLruCache.flush();
+        } catch (IOException e) {
+            DebugLog.e(TAG, "writeToDisk - " + e);
+        } catch (IllegalStateException e) {
+            // Closed meanwhile
+            DebugLog.e(TAG, "writeToDisk - " + e);
+        }
+    }
+
+    private void writeEntry(DiskLruCache.Editor editor, DiskWriteQueue.PendingWrite write)
+            throws IOException {
+        final EncodedImage original = new EncodedImage(write.buffer, write.metadata);
+        final EncodedImage stored = mParams.storageEncoder != null
+                ? mParams.storageEncoder.encode(write.data, original)
+                : new EncodedImage(write.buffer.retain(), write.metadata);
+        OutputStream out = null;
+        try {
+            // The metadata of the stored bytes is kept in the index, e.g. so the file can be
+            // decoded in a single pass on later hits
+            if (stored.getMetadata() != null) {
+                editor.setMetadata(stored.getMetadata());
+            }
+            editor.setCost(write.cost);
+            editor.setExpiresAt(write.expiresAt);
+            out = editor.newOutputStream(DISK_CACHE_INDEX);
+            stored.getBuffer().writeTo(out);
+            out.close();
+            out = null;
+            editor.commit();
+        } finally {
+            stored.getBuffer().release();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {}
+                editor.abort();
+            }
+        }
+    }
+
+    /**
+     * A hashing method that changes a string (like a URL) into a hash suitable for using as a
+     * disk filename.
+     */
+    public static String hashKeyForDisk(String key) {
+        String cacheKey;
+        try {
+            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
+            mDigest.update(key.getBytes());
+            cacheKey = bytesToHexString(mDigest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            cacheKey = String.valueOf(key.hashCode());
+        }
+        return cacheKey;
+    }
+
+    private static String bytesToHexString(byte[] bytes) {
+        // http://stackoverflow.com/questions/332079
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            String hex = Integer.toHexString(0xFF & bytes[i]);
+            if (hex.length() == 1) {
+                sb.append('0');
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A holder class that contains the engine parameters. Every tier is disabled until it is
+     * given a size.
+     */
+    public static class Params<V> {
+        private final Sizer<V> sizer;
+        private int memoryCacheSize = 0;
+        private Matcher<V> reuseFilter;
+        private int encodedCacheSize = 0;
+        private File diskCacheDir;
+        private long diskCacheSize = 0;
+        private EvictionPolicy diskEvictionPolicy;
+        private int diskCacheDurability = DiskLruCache.DURABILITY_JOURNAL;
+        private StorageEncoder storageEncoder;
+
+        /**
+         * @param sizer Measures the values of the memory tier
+         */
+        public Params(Sizer<V> sizer) {
+            this.sizer = sizer;
+        }
+
+        /**
+         * Setting the budget of the memory tier, in the unit of the sizer. 0 disables it.
+         */
+        public void setMemoryCacheSize(int memoryCacheSize) {
+            this.memoryCacheSize = memoryCacheSize;
+        }
+
+        /**
+         * Setting which values evicted from the memory tier are pooled for reuse, null
+         * (default) disables the pool
+         */
+        public void setReuseFilter(Matcher<V> reuseFilter) {
+            this.reuseFilter = reuseFilter;
+        }
+
+        /**
+         * Setting the budget in bytes of the encoded tier. 0 disables it.
+         */
+        public void setEncodedCacheSize(int encodedCacheSize) {
+            this.encodedCacheSize = encodedCacheSize;
+        }
+
+        /**
+         * Setting the directory and the budget in bytes of the disk tier. It is only opened
+         * by {@link CacheEngine#initDiskCache()}, if there is that much usable space.
+         */
+        public void setDiskCache(File diskCacheDir, long diskCacheSize) {
+            this.diskCacheDir = diskCacheDir;
+            this.diskCacheSize = diskCacheSize;
+        }
+
+        /**
+         * Setting the eviction policy of the disk tier, least recently used by default
+         */
+        public void setDiskEvictionPolicy(EvictionPolicy diskEvictionPolicy) {
+            this.diskEvictionPolicy = diskEvictionPolicy;
+        }
+
+        /**
+         * Setting the durability of the disk tier, see {@link DiskLruCache#setDurability(int)}
+         */
+        public void setDiskCacheDurability(int diskCacheDurability) {
+            this.diskCacheDurability = diskCacheDurability;
+        }
+
+        /**
+         * Setting how the bytes are prepared for the disk tier, stored as queued by default
+         */
+        public void setStorageEncoder(StorageEncoder storageEncoder) {
+            this.storageEncoder = storageEncoder;
+        }
+    }
+}
@@ -24,13 +24,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -38,13 +38,14 @@ import java.lang.reflect.Array;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -100,6 +101,7 @@ import java.util.concurrent.TimeUnit;
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String TRASH_DIRECTORY = "trash";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
@@ -107,10 +109,59 @@ public final class DiskLruCache implements Closeable {
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
+    private static final String ATTR_METADATA = "meta=";
+    private static final String ATTR_COST = "cost=";
+    private static final String ATTR_FREQUENCY = "freq=";
+    private static final String ATTR_EXPIRY = "exp=";
+
+    /*
+     * Access counts decay by half every week, so entries that were popular a
+     * long time ago don't outlive the ones popular now.
+     */
+    private static final long FREQUENCY_HALF_LIFE = 7 * 24 * 60 * 60 * 1000L;
+    private static final double MIN_PERSISTED_FREQUENCY = 0.01;
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    /**
+     * The journal is only buffered in memory and written when the buffer fills
+     * or on {@link #flush}. Nothing is synced to storage, so a crash may lose
+     * the latest entries and leave their temporary files behind. The cheapest
+     * mode, for values that can always be fetched again.
+     */
+    public static final int DURABILITY_NONE = 0;
+
+    /**
+     * The journal is flushed before an edit creates its files, so a process
+     * crash doesn't leak them, and it is synced to storage in the background
+     * at most every few seconds. A power loss may lose the latest entries. The
+     * default.
+     */
+    public static final int DURABILITY_JOURNAL = 1;
+
+    /**
+     * The values and the journal are synced to storage on every commit, which
+     * then survives a power loss. The most expensive mode.
+     */
+    public static final int DURABILITY_FULL = 2;
+
+    private static final long JOURNAL_SYNC_INTERVAL = 5 * 1000;
+
+    /**
+     * Once the cache grows over its maximum size, entries are evicted until it
+     * is back under this fraction of it, so that a commit just over the limit
+     * doesn't evict a single entry each time.
+     */
+    public static final float EVICTION_LOW_WATERMARK = 0.9f;
+
+    /*
+     * Resolution of the expiry times, and how often the background thread
+     * looks for expired entries while the cache is in use.
+     */
+    private static final long EXPIRY_TICK = 1000;
+    private static final long EXPIRY_SWEEP_INTERVAL = 30 * 1000;
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -141,28 +192,96 @@ public final class DiskLruCache implements Closeable {
      *     temporary files may need to be deleted.
      *   o CLEAN lines track a cache entry that has been successfully published
      *     and may be read. A publish line is followed by the lengths of each of
-     *     its values.
-     *   o READ lines track accesses for LRU.
+     *     its values, then by optional name=value attributes such as the
+     *     client supplied "meta=" string. Unknown attributes are ignored.
+     *     "freq=3.5@1492400000000" is the decayed access count of the entry and
+     *     the time it was last updated, so popularity survives a restart.
+     *     "exp=1492400000000" is the time after which the entry is expired.
+     *   o READ lines track accesses for LRU. When replayed they also count as
+     *     an access at the time the journal was last written.
      *   o REMOVE lines track entries that have been deleted.
      *
      * The journal file is appended to as cache operations occur. The journal may
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
-     * it exists when the cache is opened.
+     * it exists when the cache is opened. Compaction runs in the background: the
+     * index is copied under the cache lock, the new journal is written outside of
+     * it, and the lines appended meanwhile go to both journals until the new one
+     * replaces the old.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File trashDirectory;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
+    private final EvictionPolicy evictionPolicy;
     private long size = 0;
     private Writer journalWriter;
+    private FileOutputStream journalStream;
+    private int durability = DURABILITY_JOURNAL;
+    private long lastJournalSync;
+    private boolean journalSyncPending;
+    private long nextTrashNumber;
+    private boolean trashDeletionPending;
+
+    /** Expiry times of the entries that have one. */
+    private final TimingWheel expiryWheel =
+            new TimingWheel(EXPIRY_TICK, System.currentTimeMillis());
+    private long nextExpirySweep;
+    private boolean expirySweepPending;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    /** REMOVE records of the running trim, written to the journal as one batch. */
+    private final StringBuilder trimmedRecords = new StringBuilder();
+    private final EvictionTrimmer.Entries trimEntries = new EvictionTrimmer.Entries() {
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<String> lruKeys() {
+            return lruEntries.keySet().iterator();
+        }
+
+        @Override
+        public int evict(String key) {
+            final Entry entry = lruEntries.get(key);
+            if (entry == null) {
+                return EvictionTrimmer.NOT_FOUND;
+            }
+            if (entry.currentEditor != null) {
+                // Being edited, the next commit will trim again
+                return EvictionTrimmer.BUSY;
+            }
+            DiskLruCache.this.evict(entry, trimmedRecords);
+            return EvictionTrimmer.EVICTED;
+        }
+    };
+
+    /**
+     * Metadata of the readable entries that have some, published for
+     * {@link #getMetadata} to read without taking the lock of the cache.
+     * Updated under the lock whenever an entry is committed or removed.
+     */
+    private final ConcurrentHashMap<String, PublishedMetadata> publishedMetadata
+            = new ConcurrentHashMap<String, PublishedMetadata>();
     private int redundantOpCount;
 
+    /**
+     * Journal lines appended while a compaction writes the new journal, or null
+     * if no compaction is running. They are copied to the new journal before it
+     * replaces the current one.
+     */
+    private StringBuilder compactionBacklog;
+
+    /** Time credited to the READ lines while the journal is replayed. */
+    private long replayTime;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -266,9 +385,11 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
-    /** This cache uses a single background thread to evict entries. */
-    private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
-            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    /**
+     * This cache uses a single background thread to evict entries and sync
+     * the journal. It is scheduled so that a sync can be delayed.
+     */
+    private final ScheduledThreadPoolExecutor executorService = newBackgroundExecutor();
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
             synchronized (DiskLruCache.this) {
@@ -276,22 +397,80 @@ public final class DiskLruCache implements Closeable {
                     return null; // closed
                 }
                 trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
+                if (!journalRebuildRequired()) {
+                    return null;
+                }
+            }
+            compactJournal();
+            return null;
+        }
+    };
+    private final Callable<Void> syncCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                journalSyncPending = false;
+                lastJournalSync = System.currentTimeMillis();
+            }
+            syncJournal();
+            return null;
+        }
+    };
+    private final Callable<Void> expirySweepCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                expirySweepPending = false;
+                if (journalWriter == null) {
+                    return null; // closed
+                }
+                long now = System.currentTimeMillis();
+                StringBuilder removed = new StringBuilder();
+                for (String key : expiryWheel.advance(now)) {
+                    Entry entry = lruEntries.get(key);
+                    if (entry == null || !entry.isExpired(now)) {
+                        continue;
+                    }
+                    if (entry.currentEditor != null) {
+                        // the commit schedules it again, an abort leaves it to the next sweep
+                        expiryWheel.schedule(key, entry.expiresAt);
+                        continue;
+                    }
+                    evict(entry, removed);
+                }
+                if (removed.length() > 0) {
+                    writeJournalLine(removed.toString());
+                    scheduleTrashDeletion();
+                }
+            }
+            return null;
+        }
+    };
+    private final Callable<Void> trashDeletionCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                trashDeletionPending = false;
+            }
+            // files moved to the trash belong to no entry, they are deleted outside of the lock
+            File[] files = trashDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
                 }
             }
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            EvictionPolicy evictionPolicy) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.trashDirectory = new File(directory, TRASH_DIRECTORY);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.evictionPolicy = evictionPolicy;
+        evictionPolicy.clear();
     }
 
     /**
@@ -306,6 +485,19 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, new LruEvictionPolicy());
+    }
+
+    /**
+     * Opens the cache in {@code directory} with the given eviction policy,
+     * creating a cache if none exists there.
+     *
+     * @param evictionPolicy decides which entries are dropped when the cache
+     *     is over its maximum size. It must not be shared with another cache.
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            EvictionPolicy evictionPolicy) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -314,13 +506,15 @@ public final class DiskLruCache implements Closeable {
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize,
+                evictionPolicy);
         if (cache.journalFile.exists()) {
             try {
                 cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                cache.openJournalWriter();
+                // files left in the trash by a crash
+                cache.scheduleTrashDeletion();
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -331,12 +525,13 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, evictionPolicy);
         cache.rebuildJournal();
         return cache;
     }
 
     private void readJournal() throws IOException {
+        replayTime = journalFile.lastModified();
         InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
         try {
             String magic = readAsciiLine(in);
@@ -383,14 +578,17 @@ public final class DiskLruCache implements Closeable {
             lruEntries.put(key, entry);
         }
 
-        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+        if (parts[0].equals(CLEAN) && parts.length >= 2 + valueCount) {
             entry.readable = true;
             entry.currentEditor = null;
-            entry.setLengths(copyOfRange(parts, 2, parts.length));
+            entry.setLengths(copyOfRange(parts, 2, 2 + valueCount));
+            entry.expiresAt = 0; // set by every commit
+            entry.setAttributes(copyOfRange(parts, 2 + valueCount, parts.length));
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
         } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
+            // the LRU order was already updated by calling lruEntries.get()
+            entry.recordAccess(replayTime);
         } else {
             throw new IOException("unexpected journal line: " + line);
         }
@@ -408,6 +606,12 @@ public final class DiskLruCache implements Closeable {
                 for (int t = 0; t < valueCount; t++) {
                     size += entry.lengths[t];
                 }
+                evictionPolicy.onEntryAdded(entry.key, entry.getTotalLength(), entry.cost,
+                        entry.getFrequency(System.currentTimeMillis()));
+                if (entry.expiresAt > 0) {
+                    expiryWheel.schedule(entry.key, entry.expiresAt);
+                }
+                publishMetadata(entry);
             } else {
                 entry.currentEditor = null;
                 for (int t = 0; t < valueCount; t++) {
@@ -428,7 +632,107 @@ public final class DiskLruCache implements Closeable {
             journalWriter.close();
         }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
+        FileOutputStream stream = new FileOutputStream(journalFileTmp);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(stream, UTF_8), IO_BUFFER_SIZE);
+        writeJournal(writer, snapshotEntries());
+        writer.flush();
+        if (durability != DURABILITY_NONE) {
+            stream.getFD().sync();
+        }
+        writer.close();
+        journalFileTmp.renameTo(journalFile);
+        openJournalWriter();
+    }
+
+    /**
+     * Replaces the journal by one that omits redundant information, like
+     * {@link #rebuildJournal} but without holding the cache lock while the
+     * index is written. Only copying the index, then appending the backlog and
+     * swapping the files are done under the lock. If anything fails the
+     * current journal, which got every line, stays in use. Package-private so
+     * tests can run it against concurrent edits.
+     */
+    void compactJournal() throws IOException {
+        final Entry[] entries;
+        synchronized (this) {
+            if (journalWriter == null || compactionBacklog != null) {
+                return;
+            }
+            entries = snapshotEntries();
+            compactionBacklog = new StringBuilder();
+            redundantOpCount = 0;
+        }
+
+        Writer writer = null;
+        boolean swapped = false;
+        try {
+            FileOutputStream stream = new FileOutputStream(journalFileTmp);
+            writer = new BufferedWriter(new OutputStreamWriter(stream, UTF_8), IO_BUFFER_SIZE);
+            writeJournal(writer, entries);
+            writer.flush();
+            if (durability != DURABILITY_NONE) {
+                stream.getFD().sync();
+            }
+
+            synchronized (this) {
+                if (journalWriter == null) {
+                    return; // closed meanwhile
+                }
+                writer.append(compactionBacklog);
+                writer.flush();
+                if (durability == DURABILITY_FULL) {
+                    stream.getFD().sync();
+                }
+                writer.close();
+                writer = null;
+                journalWriter.close();
+                swapped = journalFileTmp.renameTo(journalFile);
+                // if the swap failed keep appending to the old journal, which got every line
+                openJournalWriter();
+                if (!swapped) {
+                    throw new IOException("failed to replace " + journalFile);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                compactionBacklog = null;
+            }
+            closeQuietly(writer);
+            if (!swapped) {
+                journalFileTmp.delete();
+            }
+        }
+    }
+
+    private void openJournalWriter() throws IOException {
+        journalStream = new FileOutputStream(journalFile, true);
+        journalWriter = new BufferedWriter(new OutputStreamWriter(journalStream, UTF_8),
+                IO_BUFFER_SIZE);
+    }
+
+    /**
+     * Copies the state of every entry in LRU order, so that the journal can be
+     * written from it without holding the lock. An entry being edited is
+     * copied as not readable and written as DIRTY.
+     */
+    private Entry[] snapshotEntries() {
+        Entry[] entries = new Entry[lruEntries.size()];
+        int i = 0;
+        for (Entry entry : lruEntries.values()) {
+            Entry copy = new Entry(entry.key);
+            System.arraycopy(entry.lengths, 0, copy.lengths, 0, valueCount);
+            copy.readable = entry.readable && entry.currentEditor == null;
+            copy.metadata = entry.metadata;
+            copy.cost = entry.cost;
+            copy.frequency = entry.frequency;
+            copy.frequencyTime = entry.frequencyTime;
+            copy.expiresAt = entry.expiresAt;
+            entries[i++] = copy;
+        }
+        return entries;
+    }
+
+    private void writeJournal(Writer writer, Entry[] entries) throws IOException {
         writer.write(MAGIC);
         writer.write("\n");
         writer.write(VERSION_1);
@@ -439,17 +743,35 @@ public final class DiskLruCache implements Closeable {
         writer.write("\n");
         writer.write("\n");
 
-        for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
+        for (Entry entry : entries) {
+            if (!entry.readable) {
                 writer.write(DIRTY + ' ' + entry.key + '\n');
             } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + entry.getAttributes() + '\n');
             }
         }
+    }
 
-        writer.close();
-        journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+    /**
+     * Appends a line to the journal, and to the backlog of a running compaction.
+     */
+    private void writeJournalLine(String line) throws IOException {
+        journalWriter.write(line);
+        if (compactionBacklog != null) {
+            compactionBacklog.append(line);
+        }
+    }
+
+    private static void syncFile(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.getFD().sync();
+        } finally {
+            randomAccessFile.close();
+        }
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -472,6 +794,40 @@ public final class DiskLruCache implements Closeable {
      */
     public synchronized Snapshot get(String key) throws IOException {
         checkNotClosed();
+        Snapshot snapshot = getSnapshot(key);
+        if (snapshot != null && journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns snapshots of all the readable entries among {@code keys}, keyed
+     * by entry key. The lookups are done under a single acquisition of the
+     * cache lock and their READ records are appended to the journal together.
+     * Missing or unreadable entries are absent from the result. Every returned
+     * snapshot must be closed.
+     */
+    public synchronized Map<String, Snapshot> getAll(Collection<String> keys)
+            throws IOException {
+        checkNotClosed();
+        Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+        for (String key : keys) {
+            if (snapshots.containsKey(key)) {
+                continue;
+            }
+            Snapshot snapshot = getSnapshot(key);
+            if (snapshot != null) {
+                snapshots.put(key, snapshot);
+            }
+        }
+        if (!snapshots.isEmpty() && journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+        return snapshots;
+    }
+
+    private Snapshot getSnapshot(String key) throws IOException {
         validateKey(key);
         Entry entry = lruEntries.get(key);
         if (entry == null) {
@@ -482,6 +838,18 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
 
+        long now = System.currentTimeMillis();
+        scheduleExpirySweep(now);
+        if (entry.isExpired(now)) {
+            if (entry.currentEditor == null) {
+                StringBuilder removed = new StringBuilder();
+                evict(entry, removed);
+                writeJournalLine(removed.toString());
+                scheduleTrashDeletion();
+            }
+            return null;
+        }
+
         /*
          * Open all streams eagerly to guarantee that we see a single published
          * snapshot. If we opened streams lazily then the streams could come
@@ -498,12 +866,47 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        entry.recordAccess(now);
+        evictionPolicy.onEntryAccessed(key);
+        writeJournalLine(READ + ' ' + key + '\n');
+
+        return new Snapshot(key, entry.sequenceNumber, entry.metadata, ins);
+    }
+
+    /**
+     * Returns the metadata stored with the entry named {@code key}, or null if
+     * the entry doesn't exist, isn't readable, is expired or has no metadata. Unlike
+     * {@link #get} this doesn't open any file, doesn't write to the journal and
+     * doesn't affect the LRU order. It doesn't take the lock of the cache
+     * either, so it is cheap enough to call from the UI thread while the
+     * cache trims or commits. Returns null if the cache is closed.
+     */
+    public String getMetadata(String key) {
+        validateKey(key);
+        PublishedMetadata published = publishedMetadata.get(key);
+        if (published == null || (published.expiresAt > 0
+                && System.currentTimeMillis() >= published.expiresAt)) {
+            return null;
         }
+        return published.metadata;
+    }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+    /**
+     * Returns the access count of the entry named {@code key}, decayed by half
+     * every week and carried over restarts, or 0 if the entry doesn't exist.
+     * Like {@link #getMetadata} this doesn't write to the journal and doesn't
+     * affect the LRU order.
+     */
+    public synchronized double getFrequency(String key) {
+        if (journalWriter == null) {
+            return 0;
+        }
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null || !entry.readable) {
+            return 0;
+        }
+        return entry.getFrequency(System.currentTimeMillis());
     }
 
     /**
@@ -533,11 +936,52 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = editor;
 
         // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        writeJournalLine(DIRTY + ' ' + key + '\n');
+        if (durability != DURABILITY_NONE) {
+            journalWriter.flush();
+        }
         return editor;
     }
 
+    /**
+     * Returns editors to create the entries named {@code keys} that don't
+     * exist yet, keyed by entry key. Keys that are already readable or being
+     * edited are absent from the result. The DIRTY records of the whole batch
+     * are flushed to the journal once, before any file is created. Every
+     * returned editor must be committed or aborted.
+     */
+    public synchronized Map<String, Editor> createAll(Collection<String> keys)
+            throws IOException {
+        checkNotClosed();
+        Map<String, Editor> editors = new HashMap<String, Editor>();
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            validateKey(key);
+            Entry entry = lruEntries.get(key);
+            if (editors.containsKey(key)
+                    || (entry != null && entry.readable && !entry.isExpired(now))) {
+                continue;
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+                lruEntries.put(key, entry);
+            } else if (entry.currentEditor != null) {
+                continue; // another edit is in progress
+            }
+
+            Editor editor = new Editor(entry);
+            entry.currentEditor = editor;
+            editors.put(key, editor);
+            writeJournalLine(DIRTY + ' ' + key + '\n');
+        }
+
+        // flush the journal before creating files to prevent file leaks
+        if (durability != DURABILITY_NONE) {
+            journalWriter.flush();
+        }
+        return editors;
+    }
+
     /**
      * Returns the directory where this cache stores its data.
      */
@@ -598,27 +1042,114 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
+                if (editor.metadata != null) {
+                    entry.metadata = editor.metadata;
+                }
+                if (editor.cost > 0) {
+                    entry.cost = editor.cost;
+                }
+                entry.expiresAt = editor.expiresAt;
+                if (entry.expiresAt > 0) {
+                    expiryWheel.schedule(entry.key, entry.expiresAt);
+                } else {
+                    expiryWheel.cancel(entry.key);
+                }
+                evictionPolicy.onEntryAdded(entry.key, entry.getTotalLength(), entry.cost,
+                        entry.getFrequency(System.currentTimeMillis()));
+                publishMetadata(entry);
             }
+            writeJournalLine(CLEAN + ' ' + entry.key + entry.getLengths() + entry.getAttributes() + '\n');
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            publishedMetadata.remove(entry.key);
+            evictionPolicy.onEntryRemoved(entry.key);
+            expiryWheel.cancel(entry.key);
+            writeJournalLine(REMOVE + ' ' + entry.key + '\n');
+        }
+
+        // with DURABILITY_FULL the editor syncs the journal, outside of the lock
+        if (durability == DURABILITY_JOURNAL) {
+            scheduleJournalSync();
         }
+        scheduleExpirySweep(System.currentTimeMillis());
 
         if (size > maxSize || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
 
+    /**
+     * Syncs the journal in the background, at once or
+     * {@link #JOURNAL_SYNC_INTERVAL} after the previous sync, so the last
+     * commits of a burst are synced even if no other commit follows.
+     */
+    private void scheduleJournalSync() {
+        if (journalSyncPending) {
+            return;
+        }
+        journalSyncPending = true;
+        long delay = lastJournalSync + JOURNAL_SYNC_INTERVAL - System.currentTimeMillis();
+        executorService.schedule(syncCallable, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Flushes the journal under the lock and syncs it outside of it, so that
+     * readers don't wait on the storage. If a compaction swapped the journal
+     * meanwhile, the new one is synced later instead.
+     */
+    private void syncJournal() throws IOException {
+        FileOutputStream stream;
+        synchronized (this) {
+            if (journalWriter == null) {
+                return; // closed
+            }
+            journalWriter.flush();
+            stream = journalStream;
+        }
+        try {
+            stream.getFD().sync();
+        } catch (IOException e) {
+            synchronized (this) {
+                if (journalWriter == null) {
+                    return; // closed, which synced the journal
+                }
+                if (stream == journalStream) {
+                    throw e;
+                }
+                scheduleJournalSync();
+            }
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor newBackgroundExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Sets how much of the cache survives a crash, one of
+     * {@link #DURABILITY_NONE}, {@link #DURABILITY_JOURNAL} (default) or
+     * {@link #DURABILITY_FULL}.
+     */
+    public synchronized void setDurability(int durability) {
+        if (durability < DURABILITY_NONE || durability > DURABILITY_FULL) {
+            throw new IllegalArgumentException("durability: " + durability);
+        }
+        this.durability = durability;
+    }
+
     /**
      * We only rebuild the journal when it will halve the size of the journal
      * and eliminate at least 2000 ops.
      */
     private boolean journalRebuildRequired() {
         final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+        return compactionBacklog == null
+                && redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
                 && redundantOpCount >= lruEntries.size();
     }
 
@@ -646,8 +1177,11 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        writeJournalLine(REMOVE + ' ' + key + '\n');
         lruEntries.remove(key);
+        publishedMetadata.remove(key);
+        evictionPolicy.onEntryRemoved(key);
+        expiryWheel.cancel(key);
 
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -691,15 +1225,92 @@ public final class DiskLruCache implements Closeable {
             }
         }
         trimToSize();
+        journalWriter.flush();
+        if (durability != DURABILITY_NONE) {
+            journalStream.getFD().sync();
+        }
         journalWriter.close();
         journalWriter = null;
+        publishedMetadata.clear();
     }
 
+    /**
+     * Evicts entries once the cache is over its maximum size, until it is back
+     * under the low watermark. The REMOVE records of the batch are appended to
+     * the journal together and the files are moved to the trash, where the
+     * background thread deletes them.
+     */
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        EvictionTrimmer.trimToSize(trimEntries, evictionPolicy, maxSize, EVICTION_LOW_WATERMARK);
+
+        if (trimmedRecords.length() > 0) {
+            final String removed = trimmedRecords.toString();
+            trimmedRecords.setLength(0);
+            writeJournalLine(removed);
+            scheduleTrashDeletion();
+        }
+    }
+
+    /**
+     * Drops an entry that isn't being edited and moves its files to the trash.
+     * The REMOVE record is appended to {@code removed}, for the caller to write
+     * to the journal with the rest of the batch.
+     */
+    private void evict(Entry entry, StringBuilder removed) {
+        for (int i = 0; i < valueCount; i++) {
+            moveToTrash(entry.getCleanFile(i));
+            size -= entry.lengths[i];
+            entry.lengths[i] = 0;
+        }
+        redundantOpCount++;
+        removed.append(REMOVE).append(' ').append(entry.key).append('\n');
+        lruEntries.remove(entry.key);
+        publishedMetadata.remove(entry.key);
+        evictionPolicy.onEntryRemoved(entry.key);
+        expiryWheel.cancel(entry.key);
+    }
+
+    private void publishMetadata(Entry entry) {
+        if (entry.readable && entry.metadata != null) {
+            publishedMetadata.put(entry.key,
+                    new PublishedMetadata(entry.metadata, entry.expiresAt));
+        } else {
+            publishedMetadata.remove(entry.key);
+        }
+    }
+
+    /**
+     * Looks for expired entries in the background, unless it was done less
+     * than {@link #EXPIRY_SWEEP_INTERVAL} ago or no entry has an expiry time.
+     */
+    private void scheduleExpirySweep(long now) {
+        if (expirySweepPending || now < nextExpirySweep || expiryWheel.isEmpty()) {
+            return;
+        }
+        expirySweepPending = true;
+        nextExpirySweep = now + EXPIRY_SWEEP_INTERVAL;
+        executorService.submit(expirySweepCallable);
+    }
+
+    /**
+     * Renames a file into the trash, which is cheaper than deleting it and
+     * frees its name at once for a new entry with the same key.
+     */
+    private void moveToTrash(File file) {
+        if (!trashDirectory.exists()) {
+            trashDirectory.mkdirs();
+        }
+        File trash = new File(trashDirectory, Long.toString(nextTrashNumber++));
+        if (!file.renameTo(trash)) {
+            // missing or can't be renamed, deleting it is the fallback
+            file.delete();
+        }
+    }
+
+    private void scheduleTrashDeletion() {
+        if (!trashDeletionPending) {
+            trashDeletionPending = true;
+            executorService.submit(trashDeletionCallable);
         }
     }
 
@@ -713,6 +1324,14 @@ public final class DiskLruCache implements Closeable {
         deleteContents(directory);
     }
 
+    /**
+     * Returns the file holding a value of a clean entry, for read only peeks before the cache
+     * is opened. The file may be replaced or deleted at any time.
+     */
+    static File getCleanFile(File directory, String key, int index) {
+        return new File(directory, key + "." + index);
+    }
+
     private void validateKey(String key) {
         if (key.contains(" ") || key.contains("\n") || key.contains("\r")) {
             throw new IllegalArgumentException(
@@ -724,20 +1343,41 @@ public final class DiskLruCache implements Closeable {
         return readFully(new InputStreamReader(in, UTF_8));
     }
 
+    /** Metadata of a readable entry and when it expires, immutable. */
+    private static final class PublishedMetadata {
+        private final String metadata;
+        private final long expiresAt;
+
+        private PublishedMetadata(String metadata, long expiresAt) {
+            this.metadata = metadata;
+            this.expiresAt = expiresAt;
+        }
+    }
+
     /**
      * A snapshot of the values for an entry.
      */
     public final class Snapshot implements Closeable {
         private final String key;
         private final long sequenceNumber;
+        private final String metadata;
         private final InputStream[] ins;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, String metadata, InputStream[] ins) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
+            this.metadata = metadata;
             this.ins = ins;
         }
 
+        /**
+         * Returns the metadata that was stored with this snapshot's entry, or
+         * null if none was set.
+         */
+        public String getMetadata() {
+            return metadata;
+        }
+
         /**
          * Returns an editor for this snapshot's entry, or null if either the
          * entry has changed since this snapshot was created or if another edit
@@ -774,6 +1414,9 @@ public final class DiskLruCache implements Closeable {
     public final class Editor {
         private final Entry entry;
         private boolean hasErrors;
+        private String metadata;
+        private long cost;
+        private long expiresAt;
 
         private Editor(Entry entry) {
             this.entry = entry;
@@ -833,17 +1476,60 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Sets a small client defined string that is stored in the journal
+         * alongside this entry and published on {@link #commit}. It must not
+         * contain spaces or newlines. If it isn't set, the entry keeps its
+         * previous metadata.
+         */
+        public void setMetadata(String metadata) {
+            if (metadata != null && (metadata.contains(" ")
+                    || metadata.contains("\n") || metadata.contains("\r"))) {
+                throw new IllegalArgumentException(
+                        "metadata must not contain spaces or newlines: \"" + metadata + "\"");
+            }
+            this.metadata = metadata;
+        }
+
+        /**
+         * Sets what it would cost to fetch this entry again, e.g. the download
+         * time in milliseconds. It is stored in the journal and given to the
+         * eviction policy on {@link #commit}.
+         */
+        public void setCost(long cost) {
+            this.cost = cost;
+        }
+
+        /**
+         * Sets the time after which this entry is expired, in milliseconds
+         * since the epoch, or 0 if it never expires. Expired entries are
+         * treated as missing and deleted in the background. Every commit sets
+         * it again, it is 0 unless set.
+         */
+        public void setExpiresAt(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
         /**
          * Commits this edit so it is visible to readers.  This releases the
          * edit lock so another edit may be started on the same key.
          */
         public void commit() throws IOException {
+            if (durability == DURABILITY_FULL && !hasErrors) {
+                // outside of the cache lock, the files are only written by this editor
+                for (int i = 0; i < valueCount; i++) {
+                    syncFile(entry.getDirtyFile(i));
+                }
+            }
             if (hasErrors) {
                 completeEdit(this, false);
                 remove(entry.key); // the previous entry is stale
             } else {
                 completeEdit(this, true);
             }
+            if (durability == DURABILITY_FULL) {
+                syncJournal();
+            }
         }
 
         /**
@@ -852,6 +1538,9 @@ public final class DiskLruCache implements Closeable {
          */
         public void abort() throws IOException {
             completeEdit(this, false);
+            if (durability == DURABILITY_FULL) {
+                syncJournal();
+            }
         }
 
         private class FaultHidingOutputStream extends FilterOutputStream {
@@ -908,6 +1597,19 @@ public final class DiskLruCache implements Closeable {
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
+        /** Client supplied metadata or null. */
+        private String metadata;
+
+        /** Refetch cost for the eviction policy, zero if unknown. */
+        private long cost;
+
+        /** Access count decayed to frequencyTime, in milliseconds since the epoch. */
+        private double frequency;
+        private long frequencyTime;
+
+        /** Expiry time in milliseconds since the epoch, zero if it never expires. */
+        private long expiresAt;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
@@ -938,12 +1640,88 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        public long getTotalLength() {
+            long total = 0;
+            for (long length : lengths) {
+                total += length;
+            }
+            return total;
+        }
+
+        public String getAttributes() {
+            StringBuilder result = new StringBuilder();
+            if (metadata != null) {
+                result.append(' ').append(ATTR_METADATA).append(metadata);
+            }
+            if (cost > 0) {
+                result.append(' ').append(ATTR_COST).append(cost);
+            }
+            if (frequency >= MIN_PERSISTED_FREQUENCY) {
+                result.append(' ').append(ATTR_FREQUENCY)
+                        .append((float) frequency).append('@').append(frequencyTime);
+            }
+            if (expiresAt > 0) {
+                result.append(' ').append(ATTR_EXPIRY).append(expiresAt);
+            }
+            return result.toString();
+        }
+
+        /**
+         * Set attributes from name=value strings, ignoring the ones we don't know.
+         */
+        private void setAttributes(String[] strings) {
+            for (String attribute : strings) {
+                if (attribute.startsWith(ATTR_METADATA)) {
+                    metadata = attribute.substring(ATTR_METADATA.length());
+                } else if (attribute.startsWith(ATTR_COST)) {
+                    try {
+                        cost = Long.parseLong(attribute.substring(ATTR_COST.length()));
+                    } catch (NumberFormatException ignored) {
+                    }
+                } else if (attribute.startsWith(ATTR_EXPIRY)) {
+                    try {
+                        expiresAt = Long.parseLong(attribute.substring(ATTR_EXPIRY.length()));
+                    } catch (NumberFormatException ignored) {
+                    }
+                } else if (attribute.startsWith(ATTR_FREQUENCY)) {
+                    String value = attribute.substring(ATTR_FREQUENCY.length());
+                    int at = value.indexOf('@');
+                    try {
+                        if (at > 0) {
+                            frequency = Double.parseDouble(value.substring(0, at));
+                            frequencyTime = Long.parseLong(value.substring(at + 1));
+                        }
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the access count decayed to {@code now}.
+         */
+        private double getFrequency(long now) {
+            if (frequency == 0 || now <= frequencyTime) {
+                return frequency;
+            }
+            return frequency * Math.pow(0.5, (double) (now - frequencyTime) / FREQUENCY_HALF_LIFE);
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt > 0 && now >= expiresAt;
+        }
+
+        private void recordAccess(long now) {
+            frequency = getFrequency(now) + 1;
+            frequencyTime = Math.max(now, frequencyTime);
+        }
+
         private IOException invalidLengths(String[] strings) throws IOException {
             throw new IOException("unexpected journal line: " + Arrays.toString(strings));
         }
 
         public File getCleanFile(int i) {
-            return new File(directory, key + "." + i);
+            return DiskLruCache.getCleanFile(directory, key, i);
         }
 
         public File getDirtyFile(int i) {
@@ -0,0 +1,287 @@
+package vn.hbs.lib.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import vn.hbs.lib.debug.DebugLog;
+import vn.hbs.lib.util.SlabBuffer;
+
+/**
+ * Bounded write-behind queue of disk cache writes, drained by a dedicated writer thread so
+ * that fetch threads deliver their image without waiting on flash I/O.
+ * <ul>
+ *     <li>Writes of the same image are coalesced, the last one wins.</li>
+ *     <li>The writer takes everything pending as one batch, which is written under a single
+ *         journal flush.</li>
+ *     <li>The queue can be paused, e.g. while a list is scrolling. Writes pile up meanwhile.</li>
+ *     <li>When it is full, the pending write with the lowest value (refetch cost per byte) is
+ *         dropped instead of blocking, possibly the new one.</li>
+ * </ul>
+ * Pending writes can still be read with {@link #get(String)} until they are on disk. The
+ * writer runs at the lowest priority, raised while someone waits for the queue to drain.
+ */
+class DiskWriteQueue {
+    private static final String TAG = DiskWriteQueue.class.getSimpleName();
+
+    private static final int MAX_PENDING_WRITES = 64;
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024; // 4MB
+
+    /**
+     * Performs a batch of writes on the writer thread
+     */
+    interface Writer {
+        void write(List<PendingWrite> batch);
+    }
+
+    private final Writer mWriter;
+    private final LinkedHashMap<String, PendingWrite> mPending =
+            new LinkedHashMap<String, PendingWrite>();
+    private final HashMap<String, PendingWrite> mInFlight = new HashMap<String, PendingWrite>();
+    private int mPendingBytes = 0;
+    private boolean mPaused = false;
+    private int mDrainRequests = 0;
+    private final List<Runnable> mFlushCallbacks = new ArrayList<Runnable>();
+    private boolean mShutdown = false;
+    private Thread mThread;
+
+    DiskWriteQueue(Writer writer) {
+        this.mWriter = writer;
+    }
+
+    /**
+     * Queue a write. The queue takes its own reference on the buffer.
+     *
+     * @param metadata The metadata to keep in the disk cache index, or null
+     * @param cost What it would cost to fetch the image again, zero or less if unknown
+     * @param expiresAt When the entry expires in milliseconds since the epoch, 0 for never
+     * @return false if the write was dropped
+     */
+    synchronized boolean enqueue(String data, SlabBuffer buffer, String metadata, long cost,
+                                 long expiresAt) {
+        final PendingWrite write = new PendingWrite(data, buffer.retain(), metadata, cost, expiresAt);
+
+        final PendingWrite replaced = mPending.remove(data);
+        if (replaced != null) {
+            mPendingBytes -= replaced.buffer.size();
+            replaced.buffer.release();
+        }
+
+        while (!mPending.isEmpty() && (mPending.size() >= MAX_PENDING_WRITES
+                || mPendingBytes + buffer.size() > MAX_PENDING_BYTES)) {
+            final PendingWrite victim = lowestValue();
+            if (victim.value() >= write.value()) {
+                DebugLog.d(TAG, "Queue full, drop write of " + data);
+                write.buffer.release();
+                return false;
+            }
+            DebugLog.d(TAG, "Queue full, drop write of " + victim.data);
+            mPending.remove(victim.data);
+            mPendingBytes -= victim.buffer.size();
+            victim.buffer.release();
+        }
+
+        mPending.put(data, write);
+        mPendingBytes += buffer.size();
+        if (mThread == null) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWriter();
+                }
+            }, "ImageCache-DiskWriter");
+            mThread.setDaemon(true);
+            updateWriterPriority();
+            mThread.start();
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Return the bytes of a write that is not on disk yet, or null. The buffer is retained
+     * for the caller, who must release it.
+     */
+    synchronized PendingWrite get(String data) {
+        PendingWrite write = mPending.get(data);
+        if (write == null) {
+            write = mInFlight.get(data);
+        }
+        if (write != null) {
+            write.buffer.retain();
+        }
+        return write;
+    }
+
+    /**
+     * Hold the writes back, e.g. while the user scrolls
+     */
+    synchronized void setPaused(boolean paused) {
+        mPaused = paused;
+        if (!paused) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Block until every write queued so far is on disk, even if the queue is paused
+     */
+    synchronized void drain() {
+        mDrainRequests++;
+        updateWriterPriority();
+        notifyAll();
+        try {
+            while (mThread != null && (!mPending.isEmpty() || !mInFlight.isEmpty())) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        } finally {
+            mDrainRequests--;
+            updateWriterPriority();
+        }
+    }
+
+    /**
+     * Have the writer write everything queued so far, even if the queue is paused, then run
+     * the callback on the writer thread. This doesn't wait for the writes. The callback runs on
+     * the calling thread if nothing is queued.
+     */
+    void requestFlush(Runnable onFlushed) {
+        synchronized (this) {
+            if (mThread != null) {
+                mFlushCallbacks.add(onFlushed);
+                mDrainRequests++;
+                updateWriterPriority();
+                notifyAll();
+                return;
+            }
+        }
+        onFlushed.run();
+    }
+
+    /**
+     * Drop every pending write
+     */
+    synchronized void clear() {
+        for (PendingWrite write : mPending.values()) {
+            write.buffer.release();
+        }
+        mPending.clear();
+        mPendingBytes = 0;
+    }
+
+    /**
+     * Write what is pending and stop the writer thread. It is started again by the next write.
+     */
+    void shutdown() {
+        drain();
+        synchronized (this) {
+            mShutdown = true;
+            notifyAll();
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            List<PendingWrite> batch = null;
+            List<Runnable> flushCallbacks = null;
+            synchronized (this) {
+                while (!mShutdown && mFlushCallbacks.isEmpty()
+                        && (mPending.isEmpty() || (mPaused && mDrainRequests == 0))) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                if (!mPending.isEmpty()) {
+                    batch = new ArrayList<PendingWrite>(mPending.values());
+                    mInFlight.putAll(mPending);
+                    mPending.clear();
+                    mPendingBytes = 0;
+                } else if (!mFlushCallbacks.isEmpty()) {
+                    // Everything queued before the requests is on disk
+                    flushCallbacks = new ArrayList<Runnable>(mFlushCallbacks);
+                    mFlushCallbacks.clear();
+                    mDrainRequests -= flushCallbacks.size();
+                    updateWriterPriority();
+                } else {
+                    mThread = null;
+                    mShutdown = false;
+                    return;
+                }
+            }
+
+            if (flushCallbacks != null) {
+                for (Runnable callback : flushCallbacks) {
+                    try {
+                        callback.run();
+                    } catch (RuntimeException e) {
+                        DebugLog.e(TAG, "Flush callback - " + e);
+                    }
+                }
+                continue;
+            }
+
+            try {
+                mWriter.write(batch);
+            } catch (RuntimeException e) {
+                DebugLog.e(TAG, "Write batch - " + e);
+            } finally {
+                synchronized (this) {
+                    for (PendingWrite write : batch) {
+                        mInFlight.remove(write.data);
+                        write.buffer.release();
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Let the writer compete with the fetch threads while someone waits on it
+     */
+    private void updateWriterPriority() {
+        if (mThread != null) {
+            mThread.setPriority(mDrainRequests > 0 ? Thread.NORM_PRIORITY : Thread.MIN_PRIORITY);
+        }
+    }
+
+    private PendingWrite lowestValue() {
+        PendingWrite lowest = null;
+        for (PendingWrite write : mPending.values()) {
+            if (lowest == null || write.value() < lowest.value()) {
+                lowest = write;
+            }
+        }
+        return lowest;
+    }
+
+    static class PendingWrite {
+        final String data;
+        final SlabBuffer buffer;
+        final String metadata;
+        final long cost;
+        final long expiresAt;
+
+        private PendingWrite(String data, SlabBuffer buffer, String metadata, long cost,
+                             long expiresAt) {
+            this.data = data;
+            this.buffer = buffer;
+            this.metadata = metadata;
+            this.cost = cost;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Refetch cost per byte, what keeping this write saves
+         */
+        private double value() {
+            return (double) Math.max(cost, 1) / Math.max(buffer.size(), 1);
+        }
+    }
+}
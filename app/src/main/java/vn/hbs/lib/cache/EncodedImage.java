@@ -0,0 +1,32 @@
+package vn.hbs.lib.cache;
+
+import vn.hbs.lib.util.SlabBuffer;
+
+/**
+ * Encoded bytes of an image and the metadata kept with them in the disk cache index, e.g. an
+ * encoded {@link vn.hbs.lib.util.ImageInfo}.
+ */
+public class EncodedImage {
+    private final SlabBuffer mBuffer;
+    private final String mMetadata;
+
+    /**
+     * @param buffer The bytes, the image owns one reference on it
+     * @param metadata The metadata or null if unknown
+     */
+    public EncodedImage(SlabBuffer buffer, String metadata) {
+        this.mBuffer = buffer;
+        this.mMetadata = metadata;
+    }
+
+    public SlabBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Return the metadata or null if unknown
+     */
+    public String getMetadata() {
+        return mMetadata;
+    }
+}
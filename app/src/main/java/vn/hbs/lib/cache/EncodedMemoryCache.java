@@ -0,0 +1,66 @@
+package vn.hbs.lib.cache;
+
+import vn.hbs.lib.util.SlabBuffer;
+
+/**
+ * Memory cache of encoded image bytes, the tier between the bitmap memory cache and the disk
+ * cache. Encoded JPEG or WebP bytes are many times smaller than the decoded pixels, so a
+ * bitmap evicted from the memory cache can be decoded again from RAM without opening a file
+ * or waiting for the disk cache lock. The bytes are kept off-heap in slab buffers, each entry
+ * holds a reference on its buffer until it is evicted.
+ */
+class EncodedMemoryCache {
+    // Larger images would push out many small ones for a single hit
+    private static final int MAX_ENTRY_FRACTION = 4;
+
+    private final SizedLruCache<EncodedImage> mCache;
+    private final int mMaxEntrySize;
+
+    /**
+     * @param maxSize The budget in bytes
+     */
+    EncodedMemoryCache(int maxSize) {
+        mMaxEntrySize = maxSize / MAX_ENTRY_FRACTION;
+        mCache = new SizedLruCache<EncodedImage>(maxSize,
+                new CacheEngine.Sizer<EncodedImage>() {
+                    @Override
+                    public int sizeOf(String key, EncodedImage value) {
+                        return value.getBuffer().size();
+                    }
+                },
+                new SizedLruCache.RemovalListener<EncodedImage>() {
+                    @Override
+                    public void onRemoved(String key, EncodedImage value, boolean replaced) {
+                        // Drop the reference of the removed entry on its buffer
+                        value.getBuffer().release();
+                    }
+                });
+    }
+
+    /**
+     * Keep the encoded bytes of an image. The cache takes its own reference on the buffer,
+     * which must not be written to afterwards.
+     */
+    synchronized void put(String data, SlabBuffer buffer, String metadata) {
+        if (buffer.size() == 0 || buffer.size() > mMaxEntrySize) {
+            return;
+        }
+        mCache.put(data, new EncodedImage(buffer.retain(), metadata));
+    }
+
+    /**
+     * Return the encoded bytes of an image or null. The buffer of the returned image is
+     * retained for the caller, who must release it.
+     */
+    synchronized EncodedImage get(String data) {
+        final EncodedImage value = mCache.get(data);
+        if (value != null) {
+            value.getBuffer().retain();
+        }
+        return value;
+    }
+
+    synchronized void evictAll() {
+        mCache.evictAll();
+    }
+}
@@ -0,0 +1,50 @@
+package vn.hbs.lib.cache;
+
+import java.util.Iterator;
+
+/**
+ * Decides which entry {@link DiskLruCache} drops when it grows over its maximum size.
+ *
+ * <p>The cache reports every entry it publishes, reads and removes, including the ones
+ * replayed from the journal when it is opened. All methods are called while holding the
+ * cache lock, so implementations don't need their own synchronization but must be fast.
+ * An instance belongs to a single cache and is cleared when that cache is opened.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Forget every entry. Called when a cache is opened with this policy.
+     */
+    void clear();
+
+    /**
+     * An entry was published or rewritten.
+     *
+     * @param key The entry key
+     * @param size The total size of the entry's values in bytes
+     * @param cost What it would cost to fetch the entry again, e.g. the download time in
+     *             milliseconds. Zero or less if unknown.
+     * @param frequency The long term access count of the entry, decayed over time and kept
+     *                  across restarts. Zero for a new entry.
+     */
+    void onEntryAdded(String key, long size, long cost, double frequency);
+
+    /**
+     * An entry was read.
+     */
+    void onEntryAccessed(String key);
+
+    /**
+     * An entry was removed, evicted or not.
+     */
+    void onEntryRemoved(String key);
+
+    /**
+     * Select the next entry to evict.
+     *
+     * @param lruKeys The keys of the cache from least to most recently used. Policies that
+     *                keep their own ordering may ignore it.
+     * @return The key to evict, or null if there is nothing to evict
+     */
+    String selectVictim(Iterator<String> lruKeys);
+}
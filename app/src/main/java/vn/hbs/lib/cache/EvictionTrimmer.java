@@ -0,0 +1,77 @@
+package vn.hbs.lib.cache;
+
+import java.util.Iterator;
+
+/**
+ * The batch eviction of {@link DiskLruCache}: once the entries grow over the maximum size,
+ * the victims an {@link EvictionPolicy} selects are dropped until the size is back under a
+ * low watermark. The cache policy simulator replays the disk tier through it as well, so
+ * that it evicts exactly like the cache does.
+ */
+public final class EvictionTrimmer {
+    /**
+     * The victim was dropped
+     */
+    public static final int EVICTED = 0;
+
+    /**
+     * The entries don't hold the victim, the policy is out of sync with them
+     */
+    public static final int NOT_FOUND = 1;
+
+    /**
+     * The victim can't be dropped now, e.g. it is being edited. The trim stops there and the
+     * next one retries.
+     */
+    public static final int BUSY = 2;
+
+    /**
+     * The entries being trimmed, accessed while holding their lock
+     */
+    public interface Entries {
+        /**
+         * The total size of the entries, in the unit of the maximum size
+         */
+        long size();
+
+        /**
+         * The keys from least to most recently used
+         */
+        Iterator<String> lruKeys();
+
+        /**
+         * Drop an entry, lowering the size and reporting the removal to the policy
+         *
+         * @return {@link #EVICTED}, {@link #NOT_FOUND} or {@link #BUSY}
+         */
+        int evict(String key);
+    }
+
+    private EvictionTrimmer() {
+    }
+
+    /**
+     * Evict once the entries are over {@code maxSize}, until they are back under
+     * {@code maxSize * lowWatermark}
+     */
+    public static void trimToSize(Entries entries, EvictionPolicy policy, long maxSize,
+                                  float lowWatermark) {
+        if (entries.size() <= maxSize) {
+            return;
+        }
+        final long lowWatermarkSize = (long) (maxSize * lowWatermark);
+        while (entries.size() > lowWatermarkSize) {
+            final String toEvict = policy.selectVictim(entries.lruKeys());
+            if (toEvict == null) {
+                break;
+            }
+            final int result = entries.evict(toEvict);
+            if (result == NOT_FOUND) {
+                // Forget the key and select again
+                policy.onEntryRemoved(toEvict);
+            } else if (result == BUSY) {
+                break;
+            }
+        }
+    }
+}
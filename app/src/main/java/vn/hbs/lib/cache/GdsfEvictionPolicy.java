@@ -0,0 +1,124 @@
+package vn.hbs.lib.cache;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * Greedy-Dual-Size-Frequency eviction. Each entry gets the priority
+ * <pre>
+ *     H = L + frequency * cost / size ^ sizeExponent
+ * </pre>
+ * and the entry with the lowest priority is evicted first. L is raised to the priority of
+ * each evicted entry, so entries that are not accessed any more age out.
+ *
+ * <p>The size exponent trades object hit ratio against byte hit ratio: 1 strongly prefers
+ * keeping many small entries (best object hit ratio), 0 ignores the size and behaves like an
+ * aging LFU weighted by cost (best byte hit ratio). Entries without a known cost count as
+ * cost 1. The frequency of an entry starts from the long term access count kept by the
+ * cache, so popular entries are not reset to a frequency of 1 on every launch.
+ */
+public class GdsfEvictionPolicy implements EvictionPolicy {
+    public static final double OBJECT_HIT_RATIO = 1.0;
+    public static final double BYTE_HIT_RATIO = 0.0;
+
+    private final double sizeExponent;
+    private final HashMap<String, Node> nodes = new HashMap<String, Node>();
+    private final TreeSet<Node> queue = new TreeSet<Node>(new Comparator<Node>() {
+        @Override
+        public int compare(Node lhs, Node rhs) {
+            if (lhs.priority != rhs.priority) {
+                return lhs.priority < rhs.priority ? -1 : 1;
+            }
+            return lhs.order < rhs.order ? -1 : (lhs.order == rhs.order ? 0 : 1);
+        }
+    });
+    private double inflation = 0;
+    private long nextOrder = 0;
+
+    public GdsfEvictionPolicy() {
+        this(OBJECT_HIT_RATIO);
+    }
+
+    /**
+     * @param sizeExponent Between {@link #BYTE_HIT_RATIO} (0) and {@link #OBJECT_HIT_RATIO} (1)
+     */
+    public GdsfEvictionPolicy(double sizeExponent) {
+        if (sizeExponent < 0 || sizeExponent > 1) {
+            throw new IllegalArgumentException("sizeExponent must be between 0 and 1");
+        }
+        this.sizeExponent = sizeExponent;
+    }
+
+    @Override
+    public void clear() {
+        nodes.clear();
+        queue.clear();
+        inflation = 0;
+    }
+
+    @Override
+    public void onEntryAdded(String key, long size, long cost, double frequency) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            node = new Node(key);
+            nodes.put(key, node);
+        } else {
+            queue.remove(node);
+        }
+        node.size = size;
+        node.cost = cost > 0 ? cost : 1;
+        node.frequency = Math.max(node.frequency + 1, frequency + 1);
+        enqueue(node);
+    }
+
+    @Override
+    public void onEntryAccessed(String key) {
+        Node node = nodes.get(key);
+        if (node != null) {
+            queue.remove(node);
+            node.frequency++;
+            enqueue(node);
+        }
+    }
+
+    @Override
+    public void onEntryRemoved(String key) {
+        Node node = nodes.remove(key);
+        if (node != null) {
+            queue.remove(node);
+        }
+    }
+
+    @Override
+    public String selectVictim(Iterator<String> lruKeys) {
+        if (queue.isEmpty()) {
+            return null;
+        }
+        Node victim = queue.first();
+        inflation = victim.priority;
+        return victim.key;
+    }
+
+    private void enqueue(Node node) {
+        double size = Math.max(node.size, 1);
+        double weight = sizeExponent == 1.0 ? size : Math.pow(size, sizeExponent);
+        node.priority = inflation + node.frequency * (double) node.cost / weight;
+        node.order = nextOrder++;
+        queue.add(node);
+    }
+
+    private static final class Node {
+        private final String key;
+        private long size;
+        private long cost;
+        private double frequency;
+        private double priority;
+        private long order;
+
+        private Node(String key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package vn.hbs.lib.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The images an {@link ImageCache} displays most often, with the size and decode format they
+ * were last displayed at. It is checkpointed next to the disk cache so that after a cold start
+ * the first screen can be decoded into the memory cache before it is requested.
+ * <p>
+ * The manifest is a small text file:
+ * <pre>
+ *     vn.hbs.lib.cache.HotSet
+ *     1
+ *
+ *     42 540 960 1 https://example.com/a.jpg
+ *     17 270 270 0 https://example.com/b.png
+ * </pre>
+ * Each line holds the display count, width, height, decode format and the url, which comes
+ * last so it may contain spaces.
+ */
+class HotSetManifest {
+    static final String FILE_NAME = "hotset";
+    private static final String FILE_NAME_TMP = "hotset.tmp";
+    private static final String MAGIC = "vn.hbs.lib.cache.HotSet";
+    private static final String VERSION_1 = "1";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Past this many tracked images the least displayed half is forgotten and the remaining
+    // counts are halved, so images popular a long time ago fade out
+    private static final int MAX_TRACKED = 256;
+    private static final int MAX_PERSISTED = 64;
+
+    private final File mFile;
+    private final File mFileTmp;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private boolean mDirty = false;
+
+    HotSetManifest(File directory) {
+        this.mFile = new File(directory, FILE_NAME);
+        this.mFileTmp = new File(directory, FILE_NAME_TMP);
+    }
+
+    /**
+     * Count a display of an image at the given size
+     */
+    synchronized void recordDisplay(String data, int width, int height, int decodeFormat) {
+        Entry entry = mEntries.get(data);
+        if (entry == null) {
+            entry = new Entry(data);
+            mEntries.put(data, entry);
+        }
+        entry.count++;
+        entry.width = width;
+        entry.height = height;
+        entry.decodeFormat = decodeFormat;
+        mDirty = true;
+
+        if (mEntries.size() > MAX_TRACKED) {
+            age();
+        }
+    }
+
+    /**
+     * Count a display of an image whose size is already known, e.g. a memory cache hit.
+     * Images not tracked yet are ignored until they are displayed with a size.
+     */
+    synchronized void recordHit(String data) {
+        final Entry entry = mEntries.get(data);
+        if (entry != null) {
+            entry.count++;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Return up to count entries, most displayed first
+     */
+    synchronized List<Entry> getTop(int count) {
+        final List<Entry> entries = sortedEntries();
+        return new ArrayList<Entry>(entries.subList(0, Math.min(count, entries.size())));
+    }
+
+    synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mDirty = false;
+        mFile.delete();
+    }
+
+    /**
+     * Merge the checkpointed manifest into the counts of this session. A missing or
+     * malformed file is ignored.
+     */
+    void load() throws IOException {
+        if (!mFile.exists()) {
+            return;
+        }
+        final ArrayList<Entry> loaded = new ArrayList<Entry>();
+        final InputStream in = new BufferedInputStream(new FileInputStream(mFile));
+        try {
+            final String magic = DiskLruCache.readAsciiLine(in);
+            final String version = DiskLruCache.readAsciiLine(in);
+            final String blank = DiskLruCache.readAsciiLine(in);
+            if (!MAGIC.equals(magic) || !VERSION_1.equals(version) || !"".equals(blank)) {
+                return;
+            }
+            while (true) {
+                final String line;
+                try {
+                    line = readUtf8Line(in);
+                } catch (EOFException endOfManifest) {
+                    break;
+                }
+                final Entry entry = parseLine(line);
+                if (entry != null) {
+                    loaded.add(entry);
+                }
+            }
+        } finally {
+            DiskLruCache.closeQuietly(in);
+        }
+
+        synchronized (this) {
+            for (Entry entry : loaded) {
+                final Entry current = mEntries.get(entry.data);
+                if (current == null) {
+                    mEntries.put(entry.data, entry);
+                } else {
+                    // Displayed already this session, its size is more recent
+                    current.count += entry.count;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the most displayed entries to a temporary file and swap it in place
+     */
+    void checkpoint() throws IOException {
+        final List<Entry> entries;
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            entries = new ArrayList<Entry>();
+            for (Entry entry : getTop(MAX_PERSISTED)) {
+                entries.add(entry.copy());
+            }
+            mDirty = false;
+        }
+
+        final File directory = mFile.getParentFile();
+        if (directory != null && !directory.exists()) {
+            directory.mkdirs();
+        }
+        final Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(mFileTmp), UTF_8));
+        try {
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION_1);
+            writer.write("\n");
+            writer.write("\n");
+            for (Entry entry : entries) {
+                writer.write(entry.count + " " + entry.width + " " + entry.height + " "
+                        + entry.decodeFormat + " " + entry.data + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!mFileTmp.renameTo(mFile)) {
+            mFileTmp.delete();
+            synchronized (this) {
+                mDirty = true;
+            }
+            throw new IOException("Can't replace " + mFile);
+        }
+    }
+
+    private List<Entry> sortedEntries() {
+        final List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.count == rhs.count ? 0 : (lhs.count > rhs.count ? -1 : 1);
+            }
+        });
+        return entries;
+    }
+
+    private void age() {
+        final List<Entry> entries = sortedEntries();
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            entry.count /= 2;
+            if (i >= MAX_TRACKED / 2 || entry.count == 0) {
+                mEntries.remove(entry.data);
+            }
+        }
+    }
+
+    private static Entry parseLine(String line) {
+        final String[] parts = line.split(" ", 5);
+        if (parts.length != 5 || parts[4].length() == 0) {
+            return null;
+        }
+        try {
+            final Entry entry = new Entry(parts[4]);
+            entry.count = Integer.parseInt(parts[0]);
+            entry.width = Integer.parseInt(parts[1]);
+            entry.height = Integer.parseInt(parts[2]);
+            entry.decodeFormat = Integer.parseInt(parts[3]);
+            return entry;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read a line of UTF-8 text, urls are not necessarily ASCII
+     */
+    private static String readUtf8Line(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+        while (true) {
+            final int c = in.read();
+            if (c == -1) {
+                throw new EOFException();
+            } else if (c == '\n') {
+                break;
+            }
+            line.write(c);
+        }
+        return new String(line.toByteArray(), UTF_8);
+    }
+
+    static class Entry {
+        final String data;
+        int count;
+        int width;
+        int height;
+        int decodeFormat;
+
+        private Entry(String data) {
+            this.data = data;
+        }
+
+        private Entry copy() {
+            final Entry copy = new Entry(data);
+            copy.count = count;
+            copy.width = width;
+            copy.height = height;
+            copy.decodeFormat = decodeFormat;
+            return copy;
+        }
+    }
+}
@@ -25,33 +25,37 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.AsyncTask;
 import android.os.Build.VERSION_CODES;
+import android.content.res.Resources;
 import android.os.Environment;
 import android.os.StatFs;
-import android.support.v4.util.LruCache;
-import android.util.Log;
+import android.os.SystemClock;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.ref.SoftReference;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import vn.hbs.lib.debug.DebugLog;
 import vn.hbs.lib.util.ImageDecoder;
+import vn.hbs.lib.util.ImageInfo;
+import vn.hbs.lib.util.SlabAllocator;
+import vn.hbs.lib.util.SlabBuffer;
 import vn.hbs.lib.util.VersionUtils;
 
 /**
  * This class handles disk and memory caching of bitmaps in conjunction with the
- * HttpRequest class and its subclasses.
+ * HttpRequest class and its subclasses. It is the Android adapter of a {@link CacheEngine}
+ * of BitmapDrawables: the engine holds the tiers and the policy, this class measures, reuses,
+ * decodes and transcodes the bitmaps, and keeps the hot set for the warm up.
  */
 public class ImageCache {
     private static final String TAG = ImageCache.class.getSimpleName();
@@ -62,89 +66,191 @@ public class ImageCache {
     // Default disk cache size in bytes
     private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
-    // Compression settings when writing images to disk cache
+    // Default encoded bytes memory cache size in bytes
+    private static final int DEFAULT_ENCODED_CACHE_SIZE = 1024 * 1024 * 4; // 4MB
+
+    // How downloaded images are stored in the disk cache: as they were downloaded, or
+    // transcoded once with the compression settings when that makes them smaller
+    public static final int STORAGE_ENCODING_ORIGINAL = 0;
+    public static final int STORAGE_ENCODING_TRANSCODE = 1;
+    private static final int DEFAULT_STORAGE_ENCODING = STORAGE_ENCODING_ORIGINAL;
+
+    // Compression settings when transcoding images for the disk cache
     private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
+    // Larger images are stored as downloaded rather than decoded in full to transcode them
+    private static final int MAX_TRANSCODE_PIXELS = 2048 * 2048;
     private static final int DISK_CACHE_INDEX = 0;
 
     // Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
 
-    protected DiskLruCache mDiskLruCache;
-    private LruCache<String, BitmapDrawable> mMemoryCache;
+    // Decode every image to ARGB_8888 unless told otherwise
+    private static final int DEFAULT_DECODE_FORMAT = ImageDecoder.DECODE_FORMAT_ARGB_8888;
+
+    // The same image decoded with another format policy is another bitmap, the memory cache
+    // keys append the format after this separator, which urls and paths don't contain
+    private static final char MEMORY_KEY_SEPARATOR = '\n';
+
+    // Number of the most displayed images decoded into memory on start, and how often the
+    // display counts are checkpointed
+    private static final int DEFAULT_WARM_UP_COUNT = 12;
+    private static final long HOT_SET_CHECKPOINT_INTERVAL = 30 * 1000;
+
+    private final CacheEngine<BitmapDrawable> mEngine;
     private ImageCacheParams mCacheParams;
-    private final Object mDiskCacheLock = new Object();
-    private boolean mDiskCacheStarting = true;
 
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    // Display counts of the memory cache, null when there is no memory or disk cache
+    private HotSetManifest mHotSet;
+    private volatile long mLastHotSetCheckpoint = SystemClock.uptimeMillis();
+    private final Runnable mCheckpointTask = new Runnable() {
+        @Override
+        public void run() {
+            checkpointHotSet();
+        }
+    };
+
+    // Process wide registry of caches keyed by disk cache directory, guarded by ImageCache.class
+    private static final HashMap<String, ImageCache> sInstances = new HashMap<String, ImageCache>();
+    private final String mRegistryKey;
+    private int mRefCount = 0;
+    private final Runnable mUnregisterTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ImageCache.class) {
+                // Unless it was obtained again while closing
+                if (mRefCount == 0 && sInstances.get(mRegistryKey) == ImageCache.this) {
+                    sInstances.remove(mRegistryKey);
+                }
+            }
+        }
+    };
 
     /**
-     * return An existing retained ImageCache object or a new one if one did not exist
+     * return An existing retained ImageCache object or a new one if one did not exist.
+     * Every caller asking for the same disk cache directory shares one ImageCache, so hits and
+     * the memory budget are shared and only one DiskLruCache writes the journal. The
+     * parameters of the first caller are used. Each call must be balanced by {@link #release()}.
      */
     public static ImageCache getInstance(ImageCacheParams cacheParams) {
         ImageCache instance = null;
 
         if (cacheParams != null) {
             synchronized (ImageCache.class) {
-                cacheParams.setMemCacheSizePercent(0.25f);
-                instance = new ImageCache(cacheParams);
+                final String registryKey = getRegistryKey(cacheParams);
+                instance = sInstances.get(registryKey);
+                if (instance == null) {
+                    cacheParams.setMemCacheSizePercent(0.25f);
+                    instance = new ImageCache(cacheParams, registryKey);
+                    sInstances.put(registryKey, instance);
+                } else if (instance.mRefCount == 0) {
+                    // Released but still closing, e.g. across an Activity recreate. Its disk
+                    // cache is opened again on the maintenance thread once the close is done,
+                    // rather than by a second instance writing the same journal meanwhile.
+                    if (instance.mCacheParams.diskCacheEnabled) {
+                        instance.initDiskCache();
+                    }
+                }
+                instance.mRefCount++;
             }
         }
         return instance;
     }
 
+    /**
+     * Release a reference obtained from {@link #getInstance(ImageCacheParams)}. The disk cache
+     * is closed when the last reference goes, and the instance stays in the registry until the
+     * close is done. Releasing more than was obtained does nothing.
+     */
+    public void release() {
+        synchronized (ImageCache.class) {
+            if (mRefCount == 0) {
+                // Unbalanced, the cache was already closed by the last release
+                return;
+            }
+            if (--mRefCount > 0) {
+                return;
+            }
+        }
+        closeCache();
+        mEngine.execute(mUnregisterTask);
+    }
+
+    private static String getRegistryKey(ImageCacheParams cacheParams) {
+        return cacheParams.diskCacheDir != null ? cacheParams.diskCacheDir.getAbsolutePath() : "";
+    }
+
     /**
      * Create a new ImageCache object using the specified parameters. This should not be
      * called directly by other classes.
      *
      * @param cacheParams The cache parameters to use to initialize the cache
+     * @param registryKey The key of this cache in the registry
      */
-    private ImageCache(ImageCacheParams cacheParams) {
+    private ImageCache(ImageCacheParams cacheParams, String registryKey) {
         mCacheParams = cacheParams;
+        mRegistryKey = registryKey;
+
+        final CacheEngine.Params<BitmapDrawable> engineParams =
+                new CacheEngine.Params<BitmapDrawable>(new CacheEngine.Sizer<BitmapDrawable>() {
+
+                    /**
+                     * Measure item size in kilobytes rather than units which is more practical
+                     * for a bitmap cache
+                     */
+                    @Override
+                    public int sizeOf(String key, BitmapDrawable value) {
+                        final int bitmapSize = getBitmapSize(value) / 1024;
+                        return bitmapSize == 0 ? 1 : bitmapSize;
+                    }
+                });
 
         // Set up memory cache
         if (mCacheParams.memoryCacheEnabled) {
-            // If we're running on Honeycomb or newer, create a set of reusable bitmaps that can be
-            // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-            // of SoftReferences which will actually not be very effective due to the garbage
-            // collector being aggressive clearing Soft/WeakReferences. A better approach
-            // would be to use a strongly references bitmaps, however this would require some
-            // balancing of memory usage between this set and the bitmap LruCache. It would also
-            // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-            // the size would need to be precise, from KitKat onward the size would just need to
-            // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
-            if (VersionUtils.hasHoneycomb()) {
-                mReusableBitmaps =
-                        Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
-            }
-
-            mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
-
-                /**
-                 * Notify the removed entry that is no longer being cached
-                 */
+            engineParams.setMemoryCacheSize(mCacheParams.memCacheSize);
+            // Bitmaps evicted from the memory cache are pooled through SoftReferences for
+            // inBitmap. Those will actually not be very effective due to the garbage collector
+            // being aggressive clearing Soft/WeakReferences. A better approach would be to use
+            // strongly referenced bitmaps, however this would require some balancing of memory
+            // usage between the pool and the memory cache.
+            // Only the drawables that count the views showing them are pooled, an evicted
+            // bitmap may still be on screen and is decoded over once no view shows it.
+            engineParams.setReuseFilter(new CacheEngine.Matcher<BitmapDrawable>() {
                 @Override
-                protected void entryRemoved(boolean evicted, String key,
-                                            BitmapDrawable oldValue, BitmapDrawable newValue) {
-                    // The removed entry is a standard BitmapDrawable
-                    if (VersionUtils.hasHoneycomb()) {
-                        // We're running on Honeycomb or later, so add the bitmap
-                        // to a SoftReference set for possible use with inBitmap later
-                        mReusableBitmaps.add(new SoftReference(oldValue.getBitmap()));
-                    }
+                public boolean matches(BitmapDrawable value) {
+                    return value instanceof RecyclingBitmapDrawable
+                            && value.getBitmap().isMutable();
                 }
+            });
+        }
 
-                /**
-                 * Measure item size in kilobytes rather than units which is more practical
-                 * for a bitmap cache
-                 */
-                @Override
-                protected int sizeOf(String key, BitmapDrawable value) {
-                    final int bitmapSize = getBitmapSize(value) / 1024;
-                    return bitmapSize == 0 ? 1 : bitmapSize;
-                }
-            };
+        // Set up encoded bytes cache
+        engineParams.setEncodedCacheSize(mCacheParams.encodedCacheSize);
+
+        // Set up disk cache, opened by initDiskCache()
+        engineParams.setDiskCache(mCacheParams.diskCacheDir, mCacheParams.diskCacheSize);
+        engineParams.setDiskEvictionPolicy(mCacheParams.diskEvictionPolicy);
+        engineParams.setDiskCacheDurability(mCacheParams.diskCacheDurability);
+        engineParams.setStorageEncoder(new CacheEngine.StorageEncoder() {
+            @Override
+            public EncodedImage encode(String data, EncodedImage original) {
+                return encodeForStorage(original);
+            }
+        });
+
+        // Maintenance runs in order on a thread of its own rather than the AsyncTask serial
+        // executor, which the whole process shares, since closing waits for the disk writer
+        mEngine = new CacheEngine<BitmapDrawable>(engineParams, new ThreadPoolExecutor(0, 1,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()));
+
+        if (mCacheParams.memoryCacheEnabled && mCacheParams.diskCacheDir != null) {
+            mHotSet = new HotSetManifest(mCacheParams.diskCacheDir);
+            if (mCacheParams.warmUpCount > 0) {
+                // Runs on the thread pool, in parallel with the journal replay of
+                // initDiskCache() on the maintenance thread
+                new WarmUpTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
         }
 
         //Initial disk cache
@@ -153,79 +259,316 @@ public class ImageCache {
         }
     }
 
+    /**
+     * Decode the images displayed most often in the previous sessions into the memory cache,
+     * at the size they were displayed at, straight from the disk cache files. The journal
+     * doesn't need to be replayed for that, a file replaced or deleted meanwhile just fails
+     * to decode.
+     */
+    private class WarmUpTask extends AsyncTask<Void, Void, Void> {
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            try {
+                mHotSet.load();
+            } catch (IOException e) {
+                DebugLog.e(TAG, "Load hot set - " + e);
+                return null;
+            }
+
+            int warmed = 0;
+            for (HotSetManifest.Entry entry : mHotSet.getTop(mCacheParams.warmUpCount)) {
+                // Leave room for what the first screen actually asks for
+                if (mEngine.getMemoryCacheSize() > mEngine.getMemoryCacheMaxSize() / 2) {
+                    break;
+                }
+                final String key = getMemoryCacheKey(entry.data, entry.decodeFormat);
+                if (mEngine.getFromMemory(key) != null) {
+                    continue;
+                }
+                final File file = mEngine.getCleanFile(entry.data);
+                if (!file.exists()) {
+                    continue;
+                }
+                final Bitmap bitmap = ImageDecoder.decodeSampledBitmapFromFile(
+                        file.getPath(), entry.width, entry.height, ImageCache.this,
+                        entry.decodeFormat);
+                if (bitmap != null && mEngine.getFromMemory(key) == null) {
+                    mEngine.putInMemory(key,
+                            new RecyclingBitmapDrawable(mCacheParams.resources, bitmap));
+                    warmed++;
+                }
+            }
+            DebugLog.d(TAG, "Warmed up memory cache with " + warmed + " images");
+            return null;
+        }
+    }
+
+    /**
+     * Checkpoint the display counts in the background if they changed for a while
+     */
+    private void checkpointHotSetIfNeeded() {
+        final long now = SystemClock.uptimeMillis();
+        if (mHotSet != null && mHotSet.isDirty()
+                && now - mLastHotSetCheckpoint > HOT_SET_CHECKPOINT_INTERVAL) {
+            mLastHotSetCheckpoint = now;
+            mEngine.execute(mCheckpointTask);
+        }
+    }
+
+    /**
+     * Writes the display counts next to the disk cache, for the warm up of the next start.
+     */
+    private void checkpointHotSet() {
+        if (mHotSet != null) {
+            try {
+                mHotSet.checkpoint();
+            } catch (IOException e) {
+                DebugLog.e(TAG, "Checkpoint hot set - " + e);
+            }
+        }
+    }
+
     public ImageCacheParams getImageCacheParams() {
         return mCacheParams;
     }
 
     /**
-     * Adds a bitmap to both memory and disk cache.
+     * Adds a bitmap decoded with the default format of this cache to memory cache.
+     *
+     * @see #addBitmapToCache(String, BitmapDrawable, int)
+     */
+    public void addBitmapToCache(String data, BitmapDrawable value) {
+        addBitmapToCache(data, value, mCacheParams.decodeFormat);
+    }
+
+    /**
+     * Adds a bitmap to memory cache. The disk cache is filled from the encoded bytes when an
+     * image is downloaded, see {@link #encodeForStorage(SlabBuffer, ImageInfo)}, a decoded
+     * bitmap is never compressed again.
      * @param data Unique identifier for the bitmap to store
      * @param value The bitmap drawable to store
+     * @param decodeFormat The ImageDecoder DECODE_FORMAT_* policy it was decoded with, only
+     *                     requests with the same policy are served this bitmap
      */
-    public void addBitmapToCache(String data, BitmapDrawable value, boolean diskCacheEnabled) {
+    public void addBitmapToCache(String data, BitmapDrawable value, int decodeFormat) {
         if (data == null || value == null) {
             return;
         }
 
         // Add to memory cache
-        if (mMemoryCache != null) {
-            mMemoryCache.put(data, value);
+        mEngine.putInMemory(getMemoryCacheKey(data, decodeFormat), value);
+
+        if (mHotSet != null) {
+            final Bitmap bitmap = value.getBitmap();
+            mHotSet.recordDisplay(data, bitmap.getWidth(), bitmap.getHeight(), decodeFormat);
+            checkpointHotSetIfNeeded();
         }
+    }
 
-        synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (diskCacheEnabled
-                    && mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                OutputStream out = null;
+    /**
+     * Return the encoded bytes to write to the disk cache for a downloaded image, according to
+     * the storage encoding of the cache parameters. With {@link #STORAGE_ENCODING_ORIGINAL}
+     * the downloaded bytes are stored as they are. With {@link #STORAGE_ENCODING_TRANSCODE}
+     * they are transcoded once to the compress format and quality of the parameters, and the
+     * result is only kept if it is smaller and loses no alpha channel. Call this once per
+     * download, on a background thread.
+     *
+     * @param original The downloaded bytes
+     * @param info The image info of the downloaded bytes, or null if unknown
+     * @return The original buffer retained or a new transcoded buffer, to be released
+     */
+    public SlabBuffer encodeForStorage(SlabBuffer original, ImageInfo info) {
+        if (mCacheParams.storageEncoding != STORAGE_ENCODING_TRANSCODE
+                || info == null
+                || (long) info.getWidth() * info.getHeight() > MAX_TRANSCODE_PIXELS
+                || (info.hasAlpha() && mCacheParams.compressFormat == CompressFormat.JPEG)) {
+            return original.retain();
+        }
 
-                try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(
-                                    mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-                            editor.commit();
-                            out.close();
-                        }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
-                    }
-                } catch (final IOException e) {
-                    DebugLog.e(TAG, "addBitmapToCache - " + e);
-                } catch (Exception e) {
-                    DebugLog.e(TAG, "addBitmapToCache - " + e);
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException e) {}
-                }
-            }
+        final Bitmap bitmap = ImageDecoder.decodeSampledBitmapFromBuffer(original,
+                info.getWidth(), info.getHeight(), null, ImageDecoder.DECODE_FORMAT_ARGB_8888,
+                info, new BitmapFactory.Options());
+        if (bitmap == null) {
+            return original.retain();
+        }
+
+        final SlabBuffer transcoded = SlabAllocator.getInstance().allocate(original.size());
+        final boolean success = bitmap.compress(mCacheParams.compressFormat,
+                mCacheParams.compressQuality, transcoded.newOutputStream());
+        bitmap.recycle();
+        if (!success || transcoded.size() == 0 || transcoded.size() >= original.size()) {
+            transcoded.release();
+            return original.retain();
+        }
+        DebugLog.d(TAG, "Transcoded " + original.size() + " to " + transcoded.size() + " bytes");
+        return transcoded;
+    }
+
+    /**
+     * The storage encoder of the engine, which keeps the image info of the stored bytes in
+     * the disk cache index
+     */
+    private EncodedImage encodeForStorage(EncodedImage original) {
+        final SlabBuffer stored = encodeForStorage(original.getBuffer(),
+                ImageInfo.decode(original.getMetadata()));
+        if (stored == original.getBuffer()) {
+            return new EncodedImage(stored, original.getMetadata());
         }
+        final ImageInfo info = ImageInfo.fromBuffer(stored);
+        return new EncodedImage(stored, info != null ? info.encode() : null);
+    }
+
+    /**
+     * Get from memory cache the bitmap decoded with the default format of this cache.
+     *
+     * @see #getBitmapFromMemCache(String, int)
+     */
+    public BitmapDrawable getBitmapFromMemCache(String data) {
+        return getBitmapFromMemCache(data, mCacheParams.decodeFormat);
     }
 
     /**
      * Get from memory cache.
      *
      * @param data Unique identifier for which item to get
+     * @param decodeFormat The ImageDecoder DECODE_FORMAT_* policy the bitmap must have been
+     *                     decoded with
      * @return The bitmap drawable if found in cache, null otherwise
      */
-    public BitmapDrawable getBitmapFromMemCache(String data) {
-        BitmapDrawable memValue = null;
-        if (mMemoryCache != null) {
-            memValue = mMemoryCache.get(data);
+    public BitmapDrawable getBitmapFromMemCache(String data, int decodeFormat) {
+        final BitmapDrawable memValue =
+                mEngine.getFromMemory(getMemoryCacheKey(data, decodeFormat));
+        if (memValue != null && mHotSet != null) {
+            mHotSet.recordHit(data);
+            checkpointHotSetIfNeeded();
         }
         return memValue;
     }
 
-    public DiskLruCache getDiskLruCache() {
-        synchronized (mDiskCacheLock) {
-            return mDiskLruCache;
+    /**
+     * Get many entries decoded with the default format of this cache from memory cache in
+     * one pass.
+     *
+     * @see #getAllFromMemCache(List, int)
+     */
+    public Map<String, BitmapDrawable> getAllFromMemCache(List<String> data) {
+        return getAllFromMemCache(data, mCacheParams.decodeFormat);
+    }
+
+    /**
+     * Get many entries from memory cache in one pass.
+     *
+     * @param data Unique identifiers of the items to get
+     * @param decodeFormat The ImageDecoder DECODE_FORMAT_* policy the bitmaps must have been
+     *                     decoded with
+     * @return The bitmap drawables found in cache, keyed by identifier
+     */
+    public Map<String, BitmapDrawable> getAllFromMemCache(List<String> data, int decodeFormat) {
+        final ArrayList<String> keys = new ArrayList<String>(data.size());
+        for (String item : data) {
+            keys.add(getMemoryCacheKey(item, decodeFormat));
         }
+        final Map<String, BitmapDrawable> found = mEngine.getAllFromMemory(keys);
+        final Map<String, BitmapDrawable> values = new HashMap<String, BitmapDrawable>();
+        for (Map.Entry<String, BitmapDrawable> entry : found.entrySet()) {
+            final String key = entry.getKey();
+            values.put(key.substring(0, key.lastIndexOf(MEMORY_KEY_SEPARATOR)), entry.getValue());
+        }
+        if (mHotSet != null && !values.isEmpty()) {
+            for (String item : values.keySet()) {
+                mHotSet.recordHit(item);
+            }
+            checkpointHotSetIfNeeded();
+        }
+        return values;
+    }
+
+    private static String getMemoryCacheKey(String data, int decodeFormat) {
+        return data + MEMORY_KEY_SEPARATOR + decodeFormat;
+    }
+
+    /**
+     * Keep the encoded bytes of an image in memory, so it can be decoded again without
+     * reading the disk cache once its bitmap is evicted from the memory cache.
+     *
+     * @param data Unique identifier for the image
+     * @param buffer The encoded image, retained by the cache and not to be written afterwards
+     * @param info The image info, or null if unknown
+     */
+    public void addEncodedToCache(String data, SlabBuffer buffer, ImageInfo info) {
+        if (data != null && buffer != null) {
+            mEngine.putEncoded(data, buffer, info != null ? info.encode() : null);
+        }
+    }
+
+    /**
+     * Queue downloaded bytes for the disk cache. They are written by a background writer
+     * thread, prepared with {@link #encodeForStorage(SlabBuffer, ImageInfo)}, so the caller
+     * never waits on disk I/O. Until written they are served by
+     * {@link #getBitmapFromEncodedCache(String, int[], int, BitmapFactory.Options)}.
+     *
+     * @param data Unique identifier for the image
+     * @param buffer The encoded image, retained by the queue and not to be written afterwards
+     * @param info The image info, or null if unknown
+     * @param cost What it would cost to fetch the image again, e.g. the download time in
+     *             milliseconds. Low cost writes are dropped first when the queue is full.
+     */
+    public void addToDiskCache(String data, SlabBuffer buffer, ImageInfo info, long cost) {
+        final long timeToLive = mCacheParams.timeToLive;
+        addToDiskCache(data, buffer, info, cost,
+                timeToLive > 0 ? System.currentTimeMillis() + timeToLive : 0);
+    }
+
+    /**
+     * Same as {@link #addToDiskCache(String, SlabBuffer, ImageInfo, long)} with an expiry time
+     * for this image, e.g. from the HTTP caching headers of the response. Once expired it is
+     * treated as missing from the disk cache and deleted in the background.
+     *
+     * @param expiresAt The expiry time in milliseconds since the epoch, 0 for never
+     */
+    public void addToDiskCache(String data, SlabBuffer buffer, ImageInfo info, long cost,
+                               long expiresAt) {
+        if (data != null && buffer != null && mCacheParams.diskCacheEnabled) {
+            mEngine.putOnDisk(data, buffer, info != null ? info.encode() : null, cost,
+                    expiresAt);
+        }
+    }
+
+    /**
+     * Hold the disk cache writes back, e.g. while the user scrolls. They are queued meanwhile,
+     * the least valuable being dropped if too many pile up.
+     */
+    public void setDiskWritesPaused(boolean paused) {
+        mEngine.setDiskWritesPaused(paused);
+    }
+
+    /**
+     * Decode from the encoded bytes kept in memory, including the ones waiting to be written
+     * to disk. This doesn't touch the filesystem or the disk cache lock.
+     *
+     * @param data Unique identifier for which item to get
+     * @param decodeFormat One of the ImageDecoder DECODE_FORMAT_* constants
+     * @param options Fresh decode options, the caller may cancel the decode through them
+     * @return The bitmap if the encoded bytes were in memory, null otherwise
+     */
+    public Bitmap getBitmapFromEncodedCache(String data, int[] measure, int decodeFormat,
+                                            BitmapFactory.Options options) {
+        final EncodedImage encoded = mEngine.getEncoded(data);
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            return ImageDecoder.decodeSampledBitmapFromBuffer(encoded.getBuffer(),
+                    measure[0], measure[1], this, decodeFormat,
+                    ImageInfo.decode(encoded.getMetadata()), options);
+        } finally {
+            encoded.getBuffer().release();
+        }
+    }
+
+    public DiskLruCache getDiskLruCache() {
+        return mEngine.getDiskLruCache();
     }
 
     /**
@@ -235,80 +578,211 @@ public class ImageCache {
      * @return The bitmap if found in cache, null otherwise
      */
     public Bitmap getBitmapFromDiskCache(String data, int[] measure) {
-        final String key = hashKeyForDisk(data);
+        return getBitmapFromDiskCache(data, measure, mCacheParams.decodeFormat);
+    }
+
+    /**
+     * Get from disk cache, decoding with the given format policy.
+     *
+     * @param data Unique identifier for which item to get
+     * @param decodeFormat One of the ImageDecoder DECODE_FORMAT_* constants
+     * @return The bitmap if found in cache, null otherwise
+     */
+    public Bitmap getBitmapFromDiskCache(String data, int[] measure, int decodeFormat) {
+        return getBitmapFromDiskCache(data, measure, decodeFormat, new BitmapFactory.Options());
+    }
+
+    /**
+     * Get from disk cache, decoding with the given format policy and options.
+     *
+     * @param data Unique identifier for which item to get
+     * @param decodeFormat One of the ImageDecoder DECODE_FORMAT_* constants
+     * @param options Fresh decode options, the caller may cancel the decode through them
+     * @return The bitmap if found in cache, null otherwise or if the decode was cancelled
+     */
+    public Bitmap getBitmapFromDiskCache(String data, int[] measure, int decodeFormat,
+                                         BitmapFactory.Options options) {
         Bitmap bitmap = null;
+        InputStream inputStream = null;
+        try {
+            final DiskLruCache.Snapshot snapshot = mEngine.getFromDisk(data);
+            if (snapshot != null) {
+                inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                if (inputStream != null) {
+                    // The index knows the image bounds so this is a single pass decode
+                    final ImageInfo info = ImageInfo.decode(snapshot.getMetadata());
+                    bitmap = decodeDiskCacheFile(data, (FileInputStream) inputStream,
+                            measure, decodeFormat, info, options);
+                }
+            }
+        } catch (final IOException e) {
+            DebugLog.e(TAG, "GetBitmapFromDiskCache - " + e);
+        } finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } catch (IOException e) {}
+        }
+        return bitmap;
+    }
 
-        synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException e) {}
+    /**
+     * Get many entries from disk cache, looking all of them up under a single acquisition of
+     * the disk cache lock.
+     *
+     * @param data Unique identifiers of the items to get
+     * @param measures The target width and height of each item
+     * @param decodeFormats The ImageDecoder DECODE_FORMAT_* policy of each item
+     * @return The bitmaps in the same order as data, null for the items not in cache
+     */
+    public Bitmap[] getBitmapsFromDiskCache(String[] data, int[][] measures, int[] decodeFormats) {
+        final Bitmap[] bitmaps = new Bitmap[data.length];
+        final ArrayList<String> misses = new ArrayList<String>(data.length);
+        for (int i = 0; i < data.length; i++) {
+            // Encoded bytes still in memory don't need the disk cache at all
+            bitmaps[i] = getBitmapFromEncodedCache(
+                    data[i], measures[i], decodeFormats[i], new BitmapFactory.Options());
+            if (bitmaps[i] == null) {
+                misses.add(data[i]);
+            }
+        }
+        if (misses.isEmpty()) {
+            return bitmaps;
+        }
+
+        Map<String, DiskLruCache.Snapshot> snapshots = null;
+        try {
+            snapshots = mEngine.getAllFromDisk(misses);
+            for (int i = 0; i < data.length; i++) {
+                final DiskLruCache.Snapshot snapshot =
+                        bitmaps[i] == null ? snapshots.get(data[i]) : null;
+                if (snapshot == null) {
+                    continue;
+                }
+                final InputStream inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                bitmaps[i] = decodeDiskCacheFile(data[i], (FileInputStream) inputStream,
+                        measures[i], decodeFormats[i],
+                        ImageInfo.decode(snapshot.getMetadata()), new BitmapFactory.Options());
+            }
+        } catch (final IOException e) {
+            DebugLog.e(TAG, "getBitmapsFromDiskCache - " + e);
+        } finally {
+            if (snapshots != null) {
+                for (DiskLruCache.Snapshot snapshot : snapshots.values()) {
+                    snapshot.close();
+                }
             }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
+        }
+        return bitmaps;
+    }
+
+    /**
+     * Decode a disk cache file. With the encoded bytes cache enabled the file is read once
+     * into an off-heap slab buffer, kept in that cache and decoded from there, otherwise it is
+     * decoded straight from its descriptor.
+     */
+    private Bitmap decodeDiskCacheFile(String data, FileInputStream inputStream, int[] measure,
+                                       int decodeFormat, ImageInfo info,
+                                       BitmapFactory.Options options) throws IOException {
+        if (mEngine.hasEncodedCache()) {
+            final long length = inputStream.getChannel().size();
+            if (length > 0 && length <= Integer.MAX_VALUE) {
+                final SlabBuffer buffer = SlabAllocator.getInstance().allocate((int) length);
                 try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-
-                            // Decode bitmap, but we don't want to sample so give
-                            // MAX_VALUE as the target dimensions
-                            bitmap = ImageDecoder.decodeSampledBitmapFromDescriptor(
-                                    fd, measure[0], measure[1], this);
-                        }
+                    if (!buffer.readFrom(inputStream.getChannel(), (int) length)) {
+                        return null;
                     }
-                } catch (final IOException e) {
-                    DebugLog.e(TAG, "GetBitmapFromDiskCache - " + e);
+                    mEngine.putEncoded(data, buffer, info != null ? info.encode() : null);
+                    return ImageDecoder.decodeSampledBitmapFromBuffer(
+                            buffer, measure[0], measure[1], this, decodeFormat, info, options);
                 } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {}
+                    buffer.release();
                 }
             }
-
-            return bitmap;
         }
+
+        final FileDescriptor fd = inputStream.getFD();
+        return ImageDecoder.decodeSampledBitmapFromDescriptor(
+                fd, measure[0], measure[1], this, decodeFormat, info, options);
     }
 
     /**
-     * @param options - BitmapFactory.Options with out* options populated
-     * @return Bitmap that case be used for inBitmap
+     * Decode a coarse preview of an image in the disk cache. This doesn't touch the LRU order
+     * any more than a normal read and the preview is not added to the memory cache.
+     *
+     * @param data Unique identifier for which item to get
+     * @param imageInfo The image info from {@link #peekDimensions(String)}
+     * @param sampleFactor How many times coarser than the full decode
+     * @return The preview bitmap if found in cache, null otherwise
      */
-    public Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
+    public Bitmap getPreviewFromDiskCache(String data, int[] measure, ImageInfo imageInfo,
+                                          int sampleFactor) {
         Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
-
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
-
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (canUseForInBitmap(item, options)) {
-                            bitmap = item;
-
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
-                }
+        InputStream inputStream = null;
+        try {
+            final DiskLruCache.Snapshot snapshot = mEngine.peekFromDisk(data);
+            if (snapshot != null) {
+                inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                FileDescriptor fd = ((FileInputStream) inputStream).getFD();
+                bitmap = ImageDecoder.decodePreviewFromDescriptor(
+                        fd, measure[0], measure[1], imageInfo, sampleFactor);
             }
+        } catch (final IOException e) {
+            DebugLog.e(TAG, "getPreviewFromDiskCache - " + e);
+        } finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } catch (IOException e) {}
         }
-
         return bitmap;
     }
 
+    /**
+     * Get the dimensions, MIME type and alpha flag of an image in the disk cache without
+     * reading or decoding it. This only looks at the in-memory disk cache index and takes no
+     * lock, so it can be called from the UI thread, e.g. to reserve the aspect ratio of a view
+     * before loading, even while the disk cache is opening.
+     *
+     * @param data Unique identifier for which item to get
+     * @return The image info if known, null otherwise or while the disk cache is starting
+     */
+    public ImageInfo peekDimensions(String data) {
+        return ImageInfo.decode(mEngine.peekMetadata(data));
+    }
+
+    /**
+     * Get the long term access count of an image in the disk cache, decayed over time and
+     * carried over restarts. Like {@link #peekDimensions(String)} this only looks at the
+     * in-memory disk cache index, e.g. for a memory cache admission filter.
+     *
+     * @param data Unique identifier for which item to get
+     * @return The access count, 0 if unknown or while the disk cache is starting
+     */
+    public double getAccessFrequency(String data) {
+        return mEngine.getAccessFrequency(data);
+    }
+
+    /**
+     * @param options - BitmapFactory.Options with out* options populated
+     * @return Bitmap that case be used for inBitmap
+     */
+    public Bitmap getBitmapFromReusableSet(final BitmapFactory.Options options) {
+        final BitmapDrawable value = mEngine.takeReusable(
+                new CacheEngine.Matcher<BitmapDrawable>() {
+                    @Override
+                    public boolean matches(BitmapDrawable candidate) {
+                        // Check to see it the item can be used for inBitmap, and that no view
+                        // shows it any more
+                        return canUseForInBitmap(candidate.getBitmap(), options)
+                                && ((RecyclingBitmapDrawable) candidate).tryReuse();
+                    }
+                });
+        return value != null ? value.getBitmap() : null;
+    }
+
 
     /**
      * A holder class that contains cache parameters.
@@ -319,8 +793,16 @@ public class ImageCache {
         private File diskCacheDir;
         private CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
         private int compressQuality = DEFAULT_COMPRESS_QUALITY;
+        private int storageEncoding = DEFAULT_STORAGE_ENCODING;
         private boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         private boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
+        private int decodeFormat = DEFAULT_DECODE_FORMAT;
+        private EvictionPolicy diskEvictionPolicy;
+        private int diskCacheDurability = DiskLruCache.DURABILITY_JOURNAL;
+        private long timeToLive = 0;
+        private int warmUpCount = DEFAULT_WARM_UP_COUNT;
+        private int encodedCacheSize = DEFAULT_ENCODED_CACHE_SIZE;
+        private Resources resources;
 
         /**
          * Create a set of image cache parameters that can be provided to
@@ -332,6 +814,7 @@ public class ImageCache {
          */
         public ImageCacheParams(Context context, String diskCacheDirectoryName) {
             diskCacheDir = getDiskCacheDir(context, diskCacheDirectoryName);
+            resources = context.getResources();
         }
 
         /**
@@ -349,6 +832,87 @@ public class ImageCache {
             return this.diskCacheEnabled;
         }
 
+        /**
+         * Setting the default decode format policy. Use
+         * {@link ImageDecoder#DECODE_FORMAT_PREFER_RGB_565} to decode opaque images (JPEG, PNG
+         * and WebP without alpha) to RGB_565, which halves the memory used per pixel. Requests
+         * may ask for another policy, bitmaps of each policy are cached separately.
+         * @param decodeFormat One of the ImageDecoder DECODE_FORMAT_* constants
+         */
+        public void setDecodeFormat(int decodeFormat) {
+            this.decodeFormat = decodeFormat;
+        }
+
+        /**
+         * Return the default decode format policy
+         */
+        public int getDecodeFormat() {
+            return this.decodeFormat;
+        }
+
+        /**
+         * Setting how downloaded images are stored in the disk cache, one of
+         * {@link ImageCache#STORAGE_ENCODING_ORIGINAL} (default) or
+         * {@link ImageCache#STORAGE_ENCODING_TRANSCODE}
+         */
+        public void setStorageEncoding(int storageEncoding) {
+            this.storageEncoding = storageEncoding;
+        }
+
+        /**
+         * Setting the format and quality images are transcoded to with
+         * {@link ImageCache#STORAGE_ENCODING_TRANSCODE}
+         */
+        public void setCompressFormat(CompressFormat compressFormat, int compressQuality) {
+            this.compressFormat = compressFormat;
+            this.compressQuality = compressQuality;
+        }
+
+        /**
+         * Setting the policy that decides which disk cache entries are evicted, e.g. a
+         * {@link GdsfEvictionPolicy} to account for entry size and download cost. Defaults to
+         * least recently used. The policy must not be shared with another cache.
+         */
+        public void setDiskEvictionPolicy(EvictionPolicy policy) {
+            this.diskEvictionPolicy = policy;
+        }
+
+        /**
+         * Setting how much of the disk cache survives a crash, one of
+         * {@link DiskLruCache#DURABILITY_NONE}, {@link DiskLruCache#DURABILITY_JOURNAL}
+         * (default) or {@link DiskLruCache#DURABILITY_FULL}. Images can always be downloaded
+         * again, so the cheaper modes lose little.
+         */
+        public void setDiskCacheDurability(int durability) {
+            this.diskCacheDurability = durability;
+        }
+
+        /**
+         * Setting how long downloaded images stay fresh in the disk cache, in milliseconds.
+         * Expired images are downloaded again and their space is reclaimed in the background.
+         * 0 (default) keeps them until they are evicted.
+         */
+        public void setTimeToLive(long timeToLive) {
+            this.timeToLive = timeToLive;
+        }
+
+        /**
+         * Setting the budget in bytes of the memory cache of encoded image bytes, which sits
+         * between the bitmap memory cache and the disk cache. 0 disables it.
+         */
+        public void setEncodedCacheSize(int encodedCacheSize) {
+            this.encodedCacheSize = encodedCacheSize;
+        }
+
+        /**
+         * Setting how many of the images displayed most often in the previous sessions are
+         * decoded into the memory cache when the cache starts, so the first screen is served
+         * from memory. 0 disables the warm up.
+         */
+        public void setWarmUpCount(int warmUpCount) {
+            this.warmUpCount = warmUpCount;
+        }
+
         /**
          * Sets the memory cache size based on a percentage of the max available VM memory.
          * Eg. setting percent to 0.2 would set the memory cache to one fifth of the available
@@ -381,18 +945,24 @@ public class ImageCache {
     @TargetApi(VERSION_CODES.KITKAT)
     private static boolean canUseForInBitmap(
             Bitmap candidate, BitmapFactory.Options targetOptions) {
+        Config targetConfig = targetOptions.inPreferredConfig != null
+                ? targetOptions.inPreferredConfig : Config.ARGB_8888;
+
         if (!VersionUtils.hasKitKat()) {
-            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
+            // On earlier versions, the dimensions and config must match exactly and the
+            // inSampleSize must be 1
             return candidate.getWidth() == targetOptions.outWidth
                     && candidate.getHeight() == targetOptions.outHeight
+                    && candidate.getConfig() == targetConfig
                     && targetOptions.inSampleSize == 1;
         }
 
         // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
-        // is smaller than the reusable bitmap candidate allocation byte count.
+        // is smaller than the reusable bitmap candidate allocation byte count. The candidate
+        // is reconfigured to the target config so measure with the config being decoded.
         int width = targetOptions.outWidth / targetOptions.inSampleSize;
         int height = targetOptions.outHeight / targetOptions.inSampleSize;
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
+        int byteCount = width * height * getBytesPerPixel(targetConfig);
         return byteCount <= candidate.getAllocationByteCount();
     }
 
@@ -436,31 +1006,10 @@ public class ImageCache {
 
     /**
      * A hashing method that changes a string (like a URL) into a hash suitable for using as a
-     * disk filename.
+     * disk filename, see {@link CacheEngine#hashKeyForDisk(String)}
      */
     public static String hashKeyForDisk(String key) {
-        String cacheKey;
-        try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(key.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
-        }
-        return cacheKey;
-    }
-
-    private static String bytesToHexString(byte[] bytes) {
-        // http://stackoverflow.com/questions/332079
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
-            }
-            sb.append(hex);
-        }
-        return sb.toString();
+        return CacheEngine.hashKeyForDisk(key);
     }
 
     /**
@@ -536,147 +1085,35 @@ public class ImageCache {
     }
 
     public void initDiskCache() {
-        new CacheAsyncTask().execute(CacheAsyncTask.MESSAGE_INIT_DISK_CACHE);
+        mEngine.initDiskCache();
     }
 
+    /**
+     * Clears both the memory and disk cache associated with this ImageCache object. The disk
+     * cache is deleted in the background.
+     */
     public void clearCache() {
-        new CacheAsyncTask().execute(CacheAsyncTask.MESSAGE_CLEAR);
+        if (mHotSet != null) {
+            mHotSet.clear();
+        }
+        mEngine.clearCache();
     }
 
+    /**
+     * Checkpoints the display counts, writes what is queued for the disk cache and flushes it
+     * in the background.
+     */
     public void flushCache() {
-        new CacheAsyncTask().execute(CacheAsyncTask.MESSAGE_FLUSH);
-    }
-
-    public void closeCache() {
-        new CacheAsyncTask().execute(CacheAsyncTask.MESSAGE_CLOSE);
+        mEngine.execute(mCheckpointTask);
+        mEngine.flushCache();
     }
 
     /**
-     * キャッシュにかんする重いタクスを管理するクラス
+     * Checkpoints the display counts, writes what is queued for the disk cache and closes it
+     * in the background.
      */
-    private class CacheAsyncTask extends AsyncTask<Object, Void, Void> {
-
-        public static final int MESSAGE_INIT_DISK_CACHE = 0;
-        public static final int MESSAGE_CLEAR = 1;
-        public static final int MESSAGE_FLUSH = 2;
-        public static final int MESSAGE_CLOSE = 3;
-
-        @Override
-        protected Void doInBackground(Object... params) {
-            int taskId = (Integer) params[0];
-
-            switch (taskId) {
-                case MESSAGE_INIT_DISK_CACHE:
-                    initDiskCache();
-                    break;
-
-                case MESSAGE_CLEAR:
-                    clearCache();
-                    break;
-
-                case MESSAGE_FLUSH:
-                    flush();
-                    break;
-
-                case MESSAGE_CLOSE:
-                    close();
-                    break;
-            }
-
-            return null;
-        }
-
-        /**
-         * Initializes the disk cache.  Note that this includes disk access so this should not be
-         * executed on the main/UI thread. By default an ImageCache does not initialize the disk
-         * cache when it is created, instead you should call initDiskCache() to initialize it on a
-         * background thread.
-         */
-        private void initDiskCache() {
-            // Set up disk cache
-            synchronized (mDiskCacheLock) {
-
-                if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
-                    File diskCacheDir = mCacheParams.diskCacheDir;
-                    if (mCacheParams.diskCacheEnabled && diskCacheDir != null) {
-                        if (!diskCacheDir.exists()) {
-                            diskCacheDir.mkdirs();
-                        }
-                        if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
-                            try {
-                                mDiskLruCache = DiskLruCache.open(
-                                        diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
-                                DebugLog.d(TAG, "Finish initialization lru disk cache !");
-
-                            } catch (final IOException e) {
-                                mCacheParams.diskCacheDir = null;
-                            }
-                        }
-                    }
-                }
-                mDiskCacheStarting = false;
-                mDiskCacheLock.notifyAll();
-            }
-        }
-
-        /**
-         * Clears both the memory and disk cache associated with this ImageCache object. Note that
-         * this includes disk access so this should not be executed on the main/UI thread.
-         */
-        private void clearCache() {
-            if (mMemoryCache != null) {
-                mMemoryCache.evictAll();
-            }
-
-            mDiskCacheStarting = true;
-            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
-                try {
-                    mDiskLruCache.delete();
-                    DebugLog.d(TAG, "Disk cache clear !");
-                } catch (IOException e) {
-                    Log.e(TAG, "clearCache - " + e);
-                }
-                mDiskLruCache = null;
-                initDiskCache();
-            }
-        }
-
-        /**
-         * Flushes the disk cache associated with this ImageCache object. Note that this includes
-         * disk access so this should not be executed on the main/UI thread.
-         */
-        private void flush() {
-            synchronized (mDiskCacheLock) {
-                if (mDiskLruCache != null) {
-                    try {
-                        mDiskLruCache.flush();
-                        DebugLog.d(TAG, "Disk cache flushed");
-                    } catch (IOException e) {
-                        DebugLog.e(TAG, "Flush - " + e);
-                    }
-                }
-            }
-        }
-
-        /**
-         * Closes the disk cache associated with this ImageCache object. Note that this includes
-         * disk access so this should not be executed on the main/UI thread.
-         */
-        private void close() {
-            synchronized (mDiskCacheLock) {
-
-                if (mDiskLruCache != null) {
-                    try {
-                        if (!mDiskLruCache.isClosed()) {
-                            mDiskLruCache.close();
-                            mDiskLruCache = null;
-                            DebugLog.d(TAG, "Disk cache closed");
-                        }
-                    } catch (IOException e) {
-                        DebugLog.e(TAG, "Close - " + e);
-                    }
-                }
-            }
-        }
+    public void closeCache() {
+        mEngine.execute(mCheckpointTask);
+        mEngine.closeCache();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,31 @@
+package vn.hbs.lib.cache;
+
+import java.util.Iterator;
+
+/**
+ * Evicts the least recently used entry, whatever its size or cost. This is the default
+ * policy of {@link DiskLruCache} and relies on the cache's own access order.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    @Override
+    public void clear() {
+    }
+
+    @Override
+    public void onEntryAdded(String key, long size, long cost, double frequency) {
+    }
+
+    @Override
+    public void onEntryAccessed(String key) {
+    }
+
+    @Override
+    public void onEntryRemoved(String key) {
+    }
+
+    @Override
+    public String selectVictim(Iterator<String> lruKeys) {
+        return lruKeys.hasNext() ? lruKeys.next() : null;
+    }
+}
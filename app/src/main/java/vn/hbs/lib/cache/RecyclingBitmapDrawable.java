@@ -0,0 +1,51 @@
+package vn.hbs.lib.cache;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * A BitmapDrawable that counts the views showing it, so that its bitmap is only decoded over
+ * (inBitmap) once nothing shows it any more. The memory cache can evict it while a view still
+ * shows it, the pool then keeps it until the count is back to zero.
+ * <p>
+ * Taking the bitmap for reuse and displaying the drawable exclude each other: once the bitmap
+ * is taken, {@link #setIsDisplayed(boolean)} refuses to count a new view.
+ */
+public class RecyclingBitmapDrawable extends BitmapDrawable {
+    private int mDisplayRefCount = 0;
+    private boolean mReused = false;
+
+    public RecyclingBitmapDrawable(Resources res, Bitmap bitmap) {
+        super(res, bitmap);
+    }
+
+    /**
+     * Count a view showing this drawable, or a task about to set it on one, or drop it
+     *
+     * @return false if the bitmap was already taken for reuse, the drawable must not be shown
+     */
+    public synchronized boolean setIsDisplayed(boolean isDisplayed) {
+        if (isDisplayed) {
+            if (mReused) {
+                return false;
+            }
+            mDisplayRefCount++;
+        } else if (mDisplayRefCount > 0) {
+            mDisplayRefCount--;
+        }
+        return true;
+    }
+
+    /**
+     * Take the bitmap for reuse if no view holds this drawable. The drawable is never shown
+     * again once it is taken.
+     */
+    synchronized boolean tryReuse() {
+        if (mReused || mDisplayRefCount > 0) {
+            return false;
+        }
+        mReused = true;
+        return true;
+    }
+}
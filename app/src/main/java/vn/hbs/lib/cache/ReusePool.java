@@ -0,0 +1,46 @@
+package vn.hbs.lib.cache;
+
+import java.lang.ref.SoftReference;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Values evicted from the memory cache, kept through soft references so that their memory
+ * can be reused, e.g. bitmaps for inBitmap, until the garbage collector needs it.
+ */
+class ReusePool<V> {
+    private final Set<SoftReference<V>> mValues = new HashSet<SoftReference<V>>();
+
+    synchronized void offer(V value) {
+        mValues.add(new SoftReference<V>(value));
+    }
+
+    /**
+     * Take a value out of the pool
+     *
+     * @return The first value the matcher accepts, or null
+     */
+    synchronized V take(CacheEngine.Matcher<V> matcher) {
+        final Iterator<SoftReference<V>> iterator = mValues.iterator();
+        while (iterator.hasNext()) {
+            final V value = iterator.next().get();
+            if (value == null) {
+                // Cleared by the garbage collector
+                iterator.remove();
+            } else if (matcher.matches(value)) {
+                iterator.remove();
+                return value;
+            }
+        }
+        return null;
+    }
+
+    synchronized boolean isEmpty() {
+        return mValues.isEmpty();
+    }
+
+    synchronized void clear() {
+        mValues.clear();
+    }
+}
@@ -0,0 +1,159 @@
+package vn.hbs.lib.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Least recently used cache bounded by the total size of its values, measured by a
+ * {@link CacheEngine.Sizer}. Same contract as the support library LruCache, in plain Java so
+ * that it runs off-device. The removal listener is called outside of the cache lock.
+ */
+class SizedLruCache<V> {
+
+    /**
+     * Notified of every value leaving the cache, whether evicted, replaced or removed
+     */
+    interface RemovalListener<V> {
+        /**
+         * @param replaced True if a put of the same key replaced the value
+         */
+        void onRemoved(String key, V value, boolean replaced);
+    }
+
+    private final LinkedHashMap<String, V> mMap = new LinkedHashMap<String, V>(0, 0.75f, true);
+    private final CacheEngine.Sizer<V> mSizer;
+    private final RemovalListener<V> mListener;
+    private final int mMaxSize;
+    private int mSize = 0;
+
+    /**
+     * @param maxSize The budget, in the unit of the sizer
+     * @param listener Notified of removed values, may be null
+     */
+    SizedLruCache(int maxSize, CacheEngine.Sizer<V> sizer, RemovalListener<V> listener) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.mMaxSize = maxSize;
+        this.mSizer = sizer;
+        this.mListener = listener;
+    }
+
+    synchronized V get(String key) {
+        return mMap.get(key);
+    }
+
+    /**
+     * Get many values under a single acquisition of the cache lock
+     *
+     * @return The values found, keyed by key
+     */
+    synchronized Map<String, V> getAll(Collection<String> keys) {
+        final Map<String, V> values = new HashMap<String, V>();
+        for (String key : keys) {
+            final V value = mMap.get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Cache a value, moving it to the head of the queue
+     *
+     * @return The value previously cached for the key, or null
+     */
+    V put(String key, V value) {
+        final V previous;
+        final List<Map.Entry<String, V>> evicted;
+        synchronized (this) {
+            mSize += safeSizeOf(key, value);
+            previous = mMap.put(key, value);
+            if (previous != null) {
+                mSize -= safeSizeOf(key, previous);
+            }
+            evicted = trimToSizeLocked(mMaxSize);
+        }
+        if (previous != null) {
+            notifyRemoved(key, previous, true);
+        }
+        notifyRemoved(evicted);
+        return previous;
+    }
+
+    V remove(String key) {
+        final V previous;
+        synchronized (this) {
+            previous = mMap.remove(key);
+            if (previous != null) {
+                mSize -= safeSizeOf(key, previous);
+            }
+        }
+        if (previous != null) {
+            notifyRemoved(key, previous, false);
+        }
+        return previous;
+    }
+
+    void evictAll() {
+        final List<Map.Entry<String, V>> evicted;
+        synchronized (this) {
+            evicted = trimToSizeLocked(-1);
+        }
+        notifyRemoved(evicted);
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    int maxSize() {
+        return mMaxSize;
+    }
+
+    private List<Map.Entry<String, V>> trimToSizeLocked(int maxSize) {
+        List<Map.Entry<String, V>> evicted = null;
+        final Iterator<Map.Entry<String, V>> iterator = mMap.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<String, V> eldest = iterator.next();
+            iterator.remove();
+            mSize -= safeSizeOf(eldest.getKey(), eldest.getValue());
+            if (evicted == null) {
+                evicted = new ArrayList<Map.Entry<String, V>>();
+            }
+            evicted.add(eldest);
+        }
+        if (mMap.isEmpty()) {
+            mSize = 0;
+        }
+        return evicted;
+    }
+
+    private int safeSizeOf(String key, V value) {
+        final int size = mSizer.sizeOf(key, value);
+        if (size < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return size;
+    }
+
+    private void notifyRemoved(String key, V value, boolean replaced) {
+        if (mListener != null) {
+            mListener.onRemoved(key, value, replaced);
+        }
+    }
+
+    private void notifyRemoved(List<Map.Entry<String, V>> entries) {
+        if (entries != null) {
+            for (Map.Entry<String, V> entry : entries) {
+                notifyRemoved(entry.getKey(), entry.getValue(), false);
+            }
+        }
+    }
+}
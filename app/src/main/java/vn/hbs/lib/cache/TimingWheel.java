@@ -0,0 +1,140 @@
+package vn.hbs.lib.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel of deadlines, so that the entries past their expiry time are
+ * found without scanning the whole cache index.
+ * <p>
+ * Level 0 has a slot per tick, each higher level a slot per full turn of the level below. A
+ * deadline sits in the lowest level whose turn covers it and moves down a level every time
+ * its slot comes up, until it is due. Deadlines further than the top level can reach are
+ * parked in its farthest slot and placed again from there.
+ * <p>
+ * Not thread safe, the owner synchronizes.
+ */
+class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long mTickMillis;
+    private final ArrayList<HashSet<String>> mSlots = new ArrayList<HashSet<String>>();
+    private final HashMap<String, Long> mDeadlines = new HashMap<String, Long>();
+    private final HashMap<String, Integer> mSlotIndexes = new HashMap<String, Integer>();
+    private long mCurrentTick;
+
+    /**
+     * @param tickMillis The resolution of the wheel
+     * @param now The current time in milliseconds
+     */
+    TimingWheel(long tickMillis, long now) {
+        this.mTickMillis = tickMillis;
+        this.mCurrentTick = now / tickMillis;
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            mSlots.add(new HashSet<String>());
+        }
+    }
+
+    /**
+     * Schedule a key to be returned by {@link #advance(long)} once the deadline is reached,
+     * replacing its previous deadline
+     */
+    void schedule(String key, long deadline) {
+        cancel(key);
+        mDeadlines.put(key, deadline);
+        place(key, deadline);
+    }
+
+    void cancel(String key) {
+        final Integer index = mSlotIndexes.remove(key);
+        if (index != null) {
+            mSlots.get(index).remove(key);
+            mDeadlines.remove(key);
+        }
+    }
+
+    boolean isEmpty() {
+        return mDeadlines.isEmpty();
+    }
+
+    /**
+     * Move the wheel to the given time and return the keys whose deadline has passed. They
+     * are no longer scheduled.
+     */
+    List<String> advance(long now) {
+        final List<String> expired = new ArrayList<String>();
+        final long targetTick = now / mTickMillis;
+
+        if (targetTick - mCurrentTick >= SLOTS) {
+            // Not advanced for more than a turn of level 0, placing every key again is cheaper
+            // than ticking through the gap
+            mCurrentTick = targetTick;
+            final List<String> keys = new ArrayList<String>(mSlotIndexes.keySet());
+            for (String key : keys) {
+                mSlots.get(mSlotIndexes.remove(key)).remove(key);
+                requeue(key, now, expired);
+            }
+            return expired;
+        }
+
+        while (mCurrentTick < targetTick) {
+            mCurrentTick++;
+            // Higher levels first, they may move keys into the slots of the lower ones
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((mCurrentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) ((mCurrentTick >> (SLOT_BITS * level)) & SLOT_MASK),
+                            now, expired);
+                }
+            }
+            cascade(0, (int) (mCurrentTick & SLOT_MASK), now, expired);
+        }
+        return expired;
+    }
+
+    private void cascade(int level, int slot, long now, List<String> expired) {
+        final HashSet<String> keys = mSlots.get(level * SLOTS + slot);
+        if (keys.isEmpty()) {
+            return;
+        }
+        final List<String> moved = new ArrayList<String>(keys);
+        keys.clear();
+        for (String key : moved) {
+            mSlotIndexes.remove(key);
+            requeue(key, now, expired);
+        }
+    }
+
+    private void requeue(String key, long now, List<String> expired) {
+        final long deadline = mDeadlines.get(key);
+        if (deadline <= now) {
+            mDeadlines.remove(key);
+            expired.add(key);
+        } else {
+            place(key, deadline);
+        }
+    }
+
+    private void place(String key, long deadline) {
+        // A deadline within the current tick is checked again on the next one
+        long deadlineTick = Math.max(deadline / mTickMillis, mCurrentTick + 1);
+        final long maxDelta = (1L << (SLOT_BITS * LEVELS)) - 1;
+        if (deadlineTick - mCurrentTick > maxDelta) {
+            deadlineTick = mCurrentTick + maxDelta;
+        }
+
+        final long delta = deadlineTick - mCurrentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        final int index = level * SLOTS
+                + (int) ((deadlineTick >> (SLOT_BITS * level)) & SLOT_MASK);
+        mSlots.get(index).add(key);
+        mSlotIndexes.put(key, index);
+    }
+}
@@ -2,6 +2,8 @@ package vn.hbs.lib.debug;
 
 import android.util.Log;
 
+import java.util.Locale;
+
 import vn.hbs.BuildConfig;
 
 /**
@@ -28,6 +30,28 @@ public class DebugLog {
         }
     }
 
+    /**
+     * Log a message built with {@link String#format(Locale, String, Object...)}. The message
+     * is only formatted in debug builds.
+     */
+    public static void i(String tag, String format, Object... args) {
+        if (BuildConfig.DEBUG) {
+            Log.i(safeToString(tag), String.format(Locale.US, format, args));
+        }
+    }
+
+    public static void d(String tag, String format, Object... args) {
+        if (BuildConfig.DEBUG) {
+            Log.d(safeToString(tag), String.format(Locale.US, format, args));
+        }
+    }
+
+    public static void e(String tag, String format, Object... args) {
+        if (BuildConfig.DEBUG) {
+            Log.e(safeToString(tag), String.format(Locale.US, format, args));
+        }
+    }
+
     private static String safeToString(Object o) {
         if (o == null) {
             return "";
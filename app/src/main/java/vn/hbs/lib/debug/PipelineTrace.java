@@ -0,0 +1,151 @@
+package vn.hbs.lib.debug;
+
+import android.annotation.TargetApi;
+import android.os.Build.VERSION_CODES;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vn.hbs.lib.util.VersionUtils;
+
+/**
+ * Tracing of the image pipeline, disabled by default. When enabled, its stages show up as
+ * systrace sections and every request records structured events in a ring buffer, which can
+ * be dumped on demand to see where a slow image spent its time.
+ * <p>
+ * Disabled, each call costs a branch: section names are constants and event arguments are
+ * primitives or references that are only formatted by {@link #dump(PrintWriter)}. Enable it
+ * before loading images, a section begun while disabled is not ended once enabled.
+ */
+public class PipelineTrace {
+
+    // Systrace sections, begun and ended on the same thread
+    public static final String SECTION_QUEUE = "ImageFetcher:queue";
+    public static final String SECTION_DISK_READ = "ImageFetcher:diskRead";
+    public static final String SECTION_DOWNLOAD = "ImageFetcher:download";
+    public static final String SECTION_DECODE = "ImageFetcher:decode";
+    public static final String SECTION_DELIVER = "ImageFetcher:deliver";
+
+    // Events of a request, with the meaning of their argument
+    public static final int EVENT_QUEUED = 0;      // 0
+    public static final int EVENT_STARTED = 1;     // 0
+    public static final int EVENT_MEMORY_HIT = 2;  // 0
+    public static final int EVENT_DISK_HIT = 3;    // 0
+    public static final int EVENT_DOWNLOADED = 4;  // bytes, -1 if the download failed
+    public static final int EVENT_DECODED = 5;     // pixels of the bitmap
+    public static final int EVENT_DELIVERED = 6;   // 1 if an image was shown, 0 otherwise
+    public static final int EVENT_CANCELLED = 7;   // 0
+    private static final String[] EVENT_NAMES = {
+            "queued", "started", "memoryHit", "diskHit", "downloaded", "decoded", "delivered",
+            "cancelled"
+    };
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private static volatile boolean sEnabled = false;
+    private static volatile TraceRingBuffer sEvents;
+    private static final AtomicInteger sNextRequestId = new AtomicInteger(1);
+
+    private PipelineTrace() {
+    }
+
+    /**
+     * Enable or disable tracing, keeping the last events in a ring of the default capacity
+     */
+    public static void setEnabled(boolean enabled) {
+        setEnabled(enabled, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of events kept, a larger capacity than the current one resets
+     *                 the ring
+     */
+    public static synchronized void setEnabled(boolean enabled, int capacity) {
+        if (enabled && (sEvents == null || sEvents.capacity() < capacity)) {
+            sEvents = new TraceRingBuffer(capacity);
+        }
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Return a new identifier for the events of a request, 0 while disabled
+     */
+    public static int newRequestId() {
+        return sEnabled ? sNextRequestId.getAndIncrement() : 0;
+    }
+
+    /**
+     * Begin one of the SECTION_* systrace sections on this thread, from Android 4.3
+     */
+    @TargetApi(VERSION_CODES.JELLY_BEAN_MR2)
+    public static void beginSection(String section) {
+        if (sEnabled && VersionUtils.hasJellyBeanMR2()) {
+            Trace.beginSection(section);
+        }
+    }
+
+    /**
+     * End the last section begun on this thread
+     */
+    @TargetApi(VERSION_CODES.JELLY_BEAN_MR2)
+    public static void endSection() {
+        if (sEnabled && VersionUtils.hasJellyBeanMR2()) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Record an event of a request
+     *
+     * @param type One of the EVENT_* constants
+     * @param requestId From {@link #newRequestId()}
+     * @param arg The argument of the event type
+     * @param url The url of the request, kept as is
+     */
+    public static void event(int type, int requestId, long arg, String url) {
+        if (sEnabled) {
+            sEvents.write(System.nanoTime(), type, requestId, arg, url);
+        }
+    }
+
+    /**
+     * Write the events in the ring, oldest first, one per line with its time relative to the
+     * oldest one
+     */
+    public static void dump(PrintWriter writer) {
+        final TraceRingBuffer events = sEvents;
+        if (events == null) {
+            writer.println("Pipeline tracing was never enabled");
+            return;
+        }
+        final List<TraceRingBuffer.Event> snapshot = events.read();
+        final long origin = snapshot.isEmpty() ? 0 : snapshot.get(0).time;
+        for (TraceRingBuffer.Event event : snapshot) {
+            writer.println(String.format(Locale.US, "%10.3f ms  #%-6d %-10s %8d  %s",
+                    (event.time - origin) / 1e6, event.id,
+                    event.type >= 0 && event.type < EVENT_NAMES.length
+                            ? EVENT_NAMES[event.type] : String.valueOf(event.type),
+                    event.arg, event.label != null ? event.label : ""));
+        }
+        writer.flush();
+    }
+
+    /**
+     * Dump the events to the debug log
+     */
+    public static void dumpToLog(String tag) {
+        final StringWriter out = new StringWriter();
+        dump(new PrintWriter(out));
+        for (String line : out.toString().split("\n")) {
+            DebugLog.d(tag, line);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package vn.hbs.lib.debug;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size ring of structured events, written without locks by any number of threads. The
+ * newest events overwrite the oldest ones. Each event is a few primitive fields and a label
+ * reference, nothing is formatted until the ring is read.
+ * <p>
+ * A writer claims the next sequence number, takes its slot by marking it as being written,
+ * fills the fields and publishes the slot with its sequence number. A writer that finds its
+ * slot taken by another one a full lap ahead or behind drops its event rather than waiting. A
+ * reader keeps a slot only if it carries the expected sequence number before and after its
+ * fields are read, so events overwritten meanwhile are skipped rather than torn.
+ */
+class TraceRingBuffer {
+    private static final long EMPTY = -2;
+    private static final long WRITING = -1;
+
+    private final int mMask;
+    private final AtomicLong mNextSequence = new AtomicLong();
+    private final AtomicLongArray mSequences;
+    private final AtomicLongArray mTimes;
+    private final AtomicLongArray mArgs;
+    private final AtomicLongArray mTypesAndIds;
+    private final AtomicReferenceArray<String> mLabels;
+
+    /**
+     * @param capacity Number of events kept, rounded up to a power of two
+     */
+    TraceRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        mTimes = new AtomicLongArray(size);
+        mArgs = new AtomicLongArray(size);
+        mTypesAndIds = new AtomicLongArray(size);
+        mLabels = new AtomicReferenceArray<String>(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, EMPTY);
+        }
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    void write(long time, int type, int id, long arg, String label) {
+        final long sequence = mNextSequence.getAndIncrement();
+        final int slot = (int) (sequence & mMask);
+        final long previous = mSequences.get(slot);
+        if (previous == WRITING || previous > sequence
+                || !mSequences.compareAndSet(slot, previous, WRITING)) {
+            return;
+        }
+        mTimes.set(slot, time);
+        mArgs.set(slot, arg);
+        mTypesAndIds.set(slot, ((long) type << 32) | (id & 0xFFFFFFFFL));
+        mLabels.set(slot, label);
+        mSequences.set(slot, sequence);
+    }
+
+    /**
+     * Copy the events still in the ring, oldest first
+     */
+    List<Event> read() {
+        final long end = mNextSequence.get();
+        final long start = Math.max(0, end - mMask - 1);
+        final List<Event> events = new ArrayList<Event>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            final int slot = (int) (sequence & mMask);
+            if (mSequences.get(slot) != sequence) {
+                continue;
+            }
+            final long time = mTimes.get(slot);
+            final long arg = mArgs.get(slot);
+            final long typeAndId = mTypesAndIds.get(slot);
+            final String label = mLabels.get(slot);
+            if (mSequences.get(slot) == sequence) {
+                events.add(new Event(time, (int) (typeAndId >>> 32), (int) typeAndId, arg, label));
+            }
+        }
+        return events;
+    }
+
+    static class Event {
+        final long time;
+        final int type;
+        final int id;
+        final long arg;
+        final String label;
+
+        private Event(long time, int type, int id, long arg, String label) {
+            this.time = time;
+            this.type = type;
+            this.id = id;
+            this.arg = arg;
+            this.label = label;
+        }
+    }
+}
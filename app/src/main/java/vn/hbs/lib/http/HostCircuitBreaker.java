@@ -0,0 +1,77 @@
+package vn.hbs.lib.http;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * Per-host circuit breaker. After a number of consecutive failures a host is considered down
+ * and requests to it fail fast for a cool down period, so a dead CDN can't tie up every fetch
+ * thread waiting for timeouts. After the cool down a single trial request is let through: if
+ * it succeeds the host is closed again, otherwise it stays open for another period.
+ */
+public class HostCircuitBreaker {
+    private final int mFailureThreshold;
+    private final long mCoolDownMillis;
+    private final HashMap<String, HostState> mHosts = new HashMap<String, HostState>();
+
+    public HostCircuitBreaker(int failureThreshold, long coolDownMillis) {
+        this.mFailureThreshold = failureThreshold;
+        this.mCoolDownMillis = coolDownMillis;
+    }
+
+    /**
+     * Return true if a request to the host may be made now
+     */
+    public synchronized boolean allowRequest(String host) {
+        final HostState state = mHosts.get(host);
+        if (state == null || state.failures < mFailureThreshold) {
+            return true;
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        if (now < state.openUntil || state.trialInProgress) {
+            return false;
+        }
+        // Half open: let one trial request through
+        state.trialInProgress = true;
+        return true;
+    }
+
+    public synchronized void onSuccess(String host) {
+        mHosts.remove(host);
+    }
+
+    public synchronized void onFailure(String host) {
+        HostState state = mHosts.get(host);
+        if (state == null) {
+            state = new HostState();
+            mHosts.put(host, state);
+        }
+        state.failures++;
+        state.trialInProgress = false;
+        if (state.failures >= mFailureThreshold) {
+            state.openUntil = SystemClock.elapsedRealtime() + mCoolDownMillis;
+        }
+    }
+
+    /**
+     * The request was abandoned before it could succeed or fail, e.g. cancelled
+     */
+    public synchronized void onCancelled(String host) {
+        final HostState state = mHosts.get(host);
+        if (state != null) {
+            state.trialInProgress = false;
+        }
+    }
+
+    public synchronized void clear() {
+        mHosts.clear();
+    }
+
+    private static final class HostState {
+        private int failures;
+        private long openUntil;
+        private boolean trialInProgress;
+    }
+}
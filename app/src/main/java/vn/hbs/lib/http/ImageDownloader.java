@@ -0,0 +1,79 @@
+package vn.hbs.lib.http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+import vn.hbs.lib.debug.DebugLog;
+import vn.hbs.lib.util.SlabAllocator;
+import vn.hbs.lib.util.SlabBuffer;
+
+/**
+ * Downloads the body of a response into an off-heap slab buffer. This part of the fetch
+ * pipeline is plain Java, so it can also be driven off-device, e.g. by a benchmark.
+ */
+public class ImageDownloader {
+    private static final String TAG = ImageDownloader.class.getSimpleName();
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Follows a download chunk by chunk
+     */
+    public interface Listener {
+        /**
+         * Called after each chunk with the bytes received so far, which must not be kept.
+         *
+         * @return false to stop the download
+         */
+        boolean onBytesDownloaded(SlabBuffer buffer);
+    }
+
+    private ImageDownloader() {
+    }
+
+    /**
+     * Download the body of a connected response, into a buffer sized from the content length
+     * when the server sends one.
+     *
+     * @param listener Notified after each chunk, may be null
+     * @return The body, to be released by the caller, or null if the download failed or was
+     *         stopped
+     */
+    public static SlabBuffer download(HttpURLConnection urlConnection, Listener listener) {
+        BufferedInputStream inputStream = null;
+        SlabBuffer buffer = null;
+        boolean complete = false;
+
+        try {
+            inputStream = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
+            final int contentLength = urlConnection.getContentLength();
+            buffer = SlabAllocator.getInstance().allocate(
+                    contentLength > 0 ? contentLength : IO_BUFFER_SIZE);
+
+            final byte[] chunk = new byte[IO_BUFFER_SIZE];
+            int count;
+            while ((count = inputStream.read(chunk)) != -1) {
+                buffer.write(chunk, 0, count);
+                // Stop between chunks once nobody wants the result
+                if (listener != null && !listener.onBytesDownloaded(buffer)) {
+                    return null;
+                }
+            }
+            complete = true;
+
+        } catch (IOException e) {
+            DebugLog.e(TAG, "IO exception string value: " + e.getLocalizedMessage());
+        } finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } catch (final IOException e) {}
+            if (!complete && buffer != null) {
+                buffer.release();
+            }
+        }
+
+        return complete ? buffer : null;
+    }
+}
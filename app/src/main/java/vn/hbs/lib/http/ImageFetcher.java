@@ -9,25 +9,41 @@ import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.content.ContextCompat;
 import android.text.TextUtils;
 import android.widget.ImageView;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import vn.hbs.lib.cache.DiskLruCache;
 import vn.hbs.lib.cache.ImageCache;
+import vn.hbs.lib.cache.RecyclingBitmapDrawable;
 import vn.hbs.lib.debug.DebugLog;
+import vn.hbs.lib.debug.PipelineTrace;
+import vn.hbs.lib.source.AssetImageSource;
+import vn.hbs.lib.source.ContentImageSource;
+import vn.hbs.lib.source.FileImageSource;
+import vn.hbs.lib.source.ImageSource;
 import vn.hbs.lib.util.ImageDecoder;
+import vn.hbs.lib.util.ImageInfo;
+import vn.hbs.lib.util.SlabBuffer;
 
 /**
  * Created by thanhbui on 2017/04/17.
@@ -37,21 +53,77 @@ public class ImageFetcher {
 
     private static final String CONTENT_TYPE = "content-type";
     private static final String CONTENT_TYPE_IMAGE = "image";
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
 
     private static final int FADE_IN_TIME = 200;
-    private static final int IO_BUFFER_SIZE = 8 * 1024;
-    private static final int DISK_CACHE_INDEX = 0;
+    // Results delivered this soon after the bind are shown without a fade, about three frames
+    private static final int DEFAULT_FADE_IN_THRESHOLD = 50;
+    private static final int TRANSITION_LAYER_IMAGE = 1;
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+    private static final int READ_TIMEOUT = 20 * 1000;
+
+    // Progressive preview settings
+    private static final int PREVIEW_SAMPLE_FACTOR = 4;
+    private static final int PREVIEW_MIN_PIXELS = 512 * 512;
+    private static final int PREVIEW_FIRST_ATTEMPT_BYTES = 32 * 1024;
+    private static final int PREVIEW_MAX_ATTEMPT_BYTES = 256 * 1024;
+
+    // Failure handling: retries with jittered exponential backoff for transient failures,
+    // a negative cache for urls that keep failing and a circuit breaker per host
+    private static final int MAX_RETRIES = 2;
+    private static final long RETRY_BASE_DELAY = 500;
+    private static final int NEGATIVE_CACHE_SIZE = 256;
+    private static final long PERMANENT_FAILURE_TTL = 10 * 60 * 1000;
+    private static final long TRANSIENT_FAILURE_TTL = 30 * 1000;
+    private static final int HOST_FAILURE_THRESHOLD = 5;
+    private static final long HOST_COOL_DOWN = 30 * 1000;
+
+    private static final int FETCH_SUCCESS = 0;
+    private static final int FETCH_CANCELLED = 1;
+    private static final int FETCH_TRANSIENT_FAILURE = 2;
+    private static final int FETCH_PERMANENT_FAILURE = 3;
 
     private boolean mFadeInBitmap = true;
+    private int mFadeInThreshold = DEFAULT_FADE_IN_THRESHOLD;
+    private boolean mProgressiveEnabled = false;
     private boolean mExitTasksEarly = false;
     protected boolean mPauseWork = false;
+    private volatile boolean mNetworkPaused = false;
 
     private Context mContext;
     protected ImageCache mImageCache;
+    private boolean mCacheReleased = false;
     private Bitmap mLoadingBitmap;
     private ImageFetcherListener mListener;
 
+    // Drawables reused by the binds of each ImageView, only touched on the UI thread
+    private final WeakHashMap<ImageView, ViewBinding> mBindings =
+            new WeakHashMap<ImageView, ViewBinding>();
+
     private final Object mPauseWorkLock = new Object();
+    private final NegativeCache mNegativeCache = new NegativeCache(NEGATIVE_CACHE_SIZE);
+    private final HostCircuitBreaker mCircuitBreaker =
+            new HostCircuitBreaker(HOST_FAILURE_THRESHOLD, HOST_COOL_DOWN);
+    private final Random mRandom = new Random();
+
+    // Closes the connections of aborted tasks. Closing may write to the socket, e.g. the TLS
+    // close, so it never runs on the UI thread, nor behind the fetches on the thread pool.
+    private static final Executor DISCONNECT_EXECUTOR = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    // Result of a task that missed the caches while network work was paused
+    private static final Object DEFERRED = new Object();
+    // Tasks waiting for network work to resume, only touched on the UI thread
+    private final ArrayList<MyAsyncTask> mDeferredTasks = new ArrayList<MyAsyncTask>();
+    // Result of a task whose attempt failed transiently, retried after its backoff
+    private static final Object RETRY = new Object();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Local image sources by URI scheme, anything else goes to the network
+    private static final String SCHEME_FILE = "file";
+    private static final String SCHEME_CONTENT = "content";
+    private static final String SCHEME_ASSET = "asset";
+    private final HashMap<String, ImageSource> mSources = new HashMap<String, ImageSource>();
 
     /**
      * Init ImageFetcher and an ImageCache to this to handle disk and memory bitmap caching.
@@ -59,12 +131,56 @@ public class ImageFetcher {
     public ImageFetcher(Context context, ImageCache.ImageCacheParams cacheParams) {
         this.mContext = context;
         mImageCache = ImageCache.getInstance(cacheParams);
+
+        registerSource(SCHEME_FILE, new FileImageSource());
+        registerSource(SCHEME_CONTENT, new ContentImageSource(context));
+        registerSource(SCHEME_ASSET, new AssetImageSource(context));
+    }
+
+    /**
+     * Register a source of local images for a URI scheme. file://, content:// and asset://
+     * (plus absolute file paths) are supported out of the box. Local images are decoded
+     * directly and skip the disk cache.
+     */
+    public void registerSource(String scheme, ImageSource source) {
+        synchronized (mSources) {
+            mSources.put(scheme, source);
+        }
+    }
+
+    /**
+     * Return the local source for the url, or null if it should be fetched from the network
+     */
+    private ImageSource getSource(String urlString) {
+        final String scheme;
+        if (urlString.startsWith("/")) {
+            scheme = SCHEME_FILE;
+        } else {
+            final int index = urlString.indexOf(':');
+            if (index <= 0) {
+                return null;
+            }
+            scheme = urlString.substring(0, index).toLowerCase(Locale.US);
+        }
+        synchronized (mSources) {
+            return mSources.get(scheme);
+        }
     }
 
     public void setListener(ImageFetcherListener listener) {
         this.mListener = listener;
     }
 
+    /**
+     * Enable progressive loading. A low resolution preview is shown first, decoded from the
+     * first scans of a progressive JPEG while it downloads or from a coarse pass over a disk
+     * cache hit, then replaced by the full quality bitmap. Only images whose full decode is
+     * large get a preview, small ones are decoded quickly enough.
+     */
+    public void setProgressiveEnabled(boolean progressiveEnabled) {
+        this.mProgressiveEnabled = progressiveEnabled;
+    }
+
     /**
      * Set placeholder bitmap that shows when the the background thread is running.
      */
@@ -72,26 +188,61 @@ public class ImageFetcher {
         mLoadingBitmap = BitmapFactory.decodeResource(mContext.getResources(), resId);
     }
 
+    /**
+     * Set how soon after the bind, in milliseconds, a result is shown directly instead of
+     * fading in, e.g. a disk cache hit finishing within a few frames. 0 always fades.
+     */
+    public void setFadeInThreshold(int fadeInThreshold) {
+        this.mFadeInThreshold = fadeInThreshold;
+    }
+
     /**
      * Request an image specified by the url parameter into an ImageView
      */
     public void load(String urlString, ImageView imageView, boolean diskCacheEnabled) {
+        int decodeFormat = ImageDecoder.DECODE_FORMAT_ARGB_8888;
+        if (mImageCache != null) {
+            decodeFormat = mImageCache.getImageCacheParams().getDecodeFormat();
+        }
+        load(urlString, imageView, diskCacheEnabled, decodeFormat);
+    }
+
+    /**
+     * Request an image specified by the url parameter into an ImageView, decoding it with
+     * the given format policy
+     *
+     * @param decodeFormat One of the ImageDecoder DECODE_FORMAT_* constants
+     */
+    public void load(String urlString, ImageView imageView, boolean diskCacheEnabled, int decodeFormat) {
         BitmapDrawable value = null;
 
         if (TextUtils.isEmpty(urlString)) {
             return;
         }
         if (mImageCache != null) {
-            value = mImageCache.getBitmapFromMemCache(urlString);
+            value = mImageCache.getBitmapFromMemCache(urlString, decodeFormat);
+            if (value != null && !trackDisplayed(imageView, value)) {
+                // Evicted and its bitmap taken for reuse meanwhile, load it again
+                value = null;
+            }
         }
 
         if (value != null) {
             // Bitmap found in memory cache
+            PipelineTrace.event(PipelineTrace.EVENT_MEMORY_HIT, 0, 0, urlString);
             imageView.setImageDrawable(value);
 
             if (mListener != null) {
                 mListener.onImageLoaded(urlString, true, ImageFetcherListener.MEMORY_CACHE_HIT);
             }
+        } else if (mNegativeCache.contains(urlString)) {
+            // Failed recently, don't open another connection to it
+            cancelWork(imageView);
+            bindPlaceholder(imageView, null);
+
+            if (mListener != null) {
+                mListener.onImageLoaded(urlString, false, ImageFetcherListener.CACHE_MISS);
+            }
         } else if (cancelPotentialWork(urlString, imageView)) {
             if (mImageCache != null
                     && !mImageCache.getImageCacheParams().getDiskCacheEnabled()) {
@@ -99,14 +250,228 @@ public class ImageFetcher {
                 mImageCache.initDiskCache();
             }
             MyAsyncTask mTask =
-                    new MyAsyncTask(urlString, imageView, diskCacheEnabled);
-            final AsyncDrawable asyncDrawable =
-                    new AsyncDrawable(mContext.getResources(), mLoadingBitmap, mTask);
-            imageView.setImageDrawable(asyncDrawable);
+                    new MyAsyncTask(urlString, imageView, diskCacheEnabled, decodeFormat);
+            bindPlaceholder(imageView, mTask);
             mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         }
     }
 
+    /**
+     * Request a batch of images, for example all the items a list adapter is about to show.
+     * The memory cache is looked up for the whole batch in one pass, then the disk cache in one
+     * pass on a background thread, and only the misses are dispatched to the network pool.
+     * Disk cache hits of a batch don't get a progressive preview.
+     */
+    public void loadAll(List<Request> requests) {
+        // The memory cache is keyed by decode format too, one pass per format of the batch
+        final HashMap<Integer, List<String>> urlsByFormat = new HashMap<Integer, List<String>>();
+        for (Request request : requests) {
+            if (!TextUtils.isEmpty(request.mUrl)) {
+                final int decodeFormat = getDecodeFormat(request);
+                List<String> urls = urlsByFormat.get(decodeFormat);
+                if (urls == null) {
+                    urls = new ArrayList<String>();
+                    urlsByFormat.put(decodeFormat, urls);
+                }
+                urls.add(request.mUrl);
+            }
+        }
+        final HashMap<Integer, Map<String, BitmapDrawable>> valuesByFormat =
+                new HashMap<Integer, Map<String, BitmapDrawable>>();
+        for (Map.Entry<Integer, List<String>> entry : urlsByFormat.entrySet()) {
+            valuesByFormat.put(entry.getKey(), mImageCache != null
+                    ? mImageCache.getAllFromMemCache(entry.getValue(), entry.getKey())
+                    : new HashMap<String, BitmapDrawable>());
+        }
+
+        final ArrayList<MyAsyncTask> diskTasks = new ArrayList<MyAsyncTask>();
+        for (Request request : requests) {
+            final String urlString = request.mUrl;
+            final ImageView imageView = request.mImageView;
+            if (TextUtils.isEmpty(urlString)) {
+                continue;
+            }
+
+            final int decodeFormat = getDecodeFormat(request);
+            BitmapDrawable value = valuesByFormat.get(decodeFormat).get(urlString);
+            if (value != null && !trackDisplayed(imageView, value)) {
+                // Evicted and its bitmap taken for reuse meanwhile, load it again
+                value = null;
+            }
+            if (value != null) {
+                // Bitmap found in memory cache
+                imageView.setImageDrawable(value);
+
+                if (mListener != null) {
+                    mListener.onImageLoaded(urlString, true, ImageFetcherListener.MEMORY_CACHE_HIT);
+                }
+            } else if (mNegativeCache.contains(urlString)) {
+                // Failed recently, don't open another connection to it
+                cancelWork(imageView);
+                bindPlaceholder(imageView, null);
+
+                if (mListener != null) {
+                    mListener.onImageLoaded(urlString, false, ImageFetcherListener.CACHE_MISS);
+                }
+            } else if (cancelPotentialWork(urlString, imageView)) {
+                if (mImageCache != null
+                        && !mImageCache.getImageCacheParams().getDiskCacheEnabled()) {
+                    mImageCache.getImageCacheParams().setDiskCacheEnabled(true);
+                    mImageCache.initDiskCache();
+                }
+                MyAsyncTask task = new MyAsyncTask(
+                        urlString, imageView, request.mDiskCacheEnabled, decodeFormat);
+                bindPlaceholder(imageView, task);
+                if (mImageCache != null && task.mDiskCacheEnabled) {
+                    diskTasks.add(task);
+                } else {
+                    task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                }
+            }
+        }
+
+        if (!diskTasks.isEmpty()) {
+            new BatchDiskCacheTask(diskTasks).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    /**
+     * The decode format policy of a request, the default one of the cache if not given
+     */
+    private int getDecodeFormat(Request request) {
+        if (request.mDecodeFormat != Request.DECODE_FORMAT_DEFAULT) {
+            return request.mDecodeFormat;
+        }
+        return mImageCache != null
+                ? mImageCache.getImageCacheParams().getDecodeFormat()
+                : ImageDecoder.DECODE_FORMAT_ARGB_8888;
+    }
+
+    /**
+     * One image request of a {@link #loadAll(List)} batch
+     */
+    public static class Request {
+        private static final int DECODE_FORMAT_DEFAULT = -1;
+
+        private final String mUrl;
+        private final ImageView mImageView;
+        private final boolean mDiskCacheEnabled;
+        private final int mDecodeFormat;
+
+        public Request(String url, ImageView imageView, boolean diskCacheEnabled) {
+            this(url, imageView, diskCacheEnabled, DECODE_FORMAT_DEFAULT);
+        }
+
+        /**
+         * @param decodeFormat One of the ImageDecoder DECODE_FORMAT_* constants
+         */
+        public Request(String url, ImageView imageView, boolean diskCacheEnabled,
+                       int decodeFormat) {
+            this.mUrl = url;
+            this.mImageView = imageView;
+            this.mDiskCacheEnabled = diskCacheEnabled;
+            this.mDecodeFormat = decodeFormat;
+        }
+    }
+
+    /**
+     * Resolve the disk cache hits of a batch of tasks under a single disk cache lookup, then
+     * deliver the hits and start the misses on the thread pool without checking the disk again.
+     */
+    private class BatchDiskCacheTask extends AsyncTask<Void, Void, BitmapDrawable[]> {
+        private final List<MyAsyncTask> mTasks;
+
+        public BatchDiskCacheTask(List<MyAsyncTask> tasks) {
+            this.mTasks = tasks;
+        }
+
+        @Override
+        protected BitmapDrawable[] doInBackground(Void... params) {
+            // Wait here if work is paused
+            synchronized (mPauseWorkLock) {
+                while (mPauseWork && !mExitTasksEarly) {
+                    try {
+                        mPauseWorkLock.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+
+            final int count = mTasks.size();
+            final BitmapDrawable[] drawables = new BitmapDrawable[count];
+            if (mExitTasksEarly || mImageCache.getDiskLruCache() == null) {
+                return drawables;
+            }
+
+            // Skip the requests that were cancelled or rebound since the batch was queued
+            final ArrayList<Integer> indices = new ArrayList<Integer>(count);
+            for (int i = 0; i < count; i++) {
+                final MyAsyncTask task = mTasks.get(i);
+                if (!task.isCancelled() && task.getAttachedImageView() != null) {
+                    indices.add(i);
+                }
+            }
+
+            final String[] data = new String[indices.size()];
+            final int[][] measures = new int[indices.size()][];
+            final int[] decodeFormats = new int[indices.size()];
+            for (int i = 0; i < data.length; i++) {
+                final MyAsyncTask task = mTasks.get(indices.get(i));
+                data[i] = task.mUrl;
+                measures[i] = task.getImageViewMeasures(task.getAttachedImageView());
+                decodeFormats[i] = task.mDecodeFormat;
+            }
+
+            final Bitmap[] bitmaps;
+            PipelineTrace.beginSection(PipelineTrace.SECTION_DISK_READ);
+            try {
+                bitmaps = mImageCache.getBitmapsFromDiskCache(data, measures, decodeFormats);
+            } finally {
+                PipelineTrace.endSection();
+            }
+            for (int i = 0; i < bitmaps.length; i++) {
+                if (bitmaps[i] != null) {
+                    final int index = indices.get(i);
+                    drawables[index] = mTasks.get(index).convertToBitmapDrawable(bitmaps[i]);
+                }
+            }
+            return drawables;
+        }
+
+        @Override
+        protected void onPostExecute(BitmapDrawable[] drawables) {
+            for (int i = 0; i < drawables.length; i++) {
+                final MyAsyncTask task = mTasks.get(i);
+                if (task.isCancelled()) {
+                    releaseDisplayHold(drawables[i]);
+                    continue;
+                }
+                if (drawables[i] != null) {
+                    task.mCacheState = ImageFetcherListener.DISK_CACHE_HIT;
+                    PipelineTrace.event(
+                            PipelineTrace.EVENT_DISK_HIT, task.mTraceId, 0, task.mUrl);
+                    task.deliverResult(drawables[i]);
+                } else if (!mExitTasksEarly) {
+                    task.mSkipDiskCache = true;
+                    task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the dimensions of an image that is already in the disk cache, without loading it.
+     * Useful to reserve the aspect ratio of a view before the image arrives.
+     *
+     * @return The image info or null if the image is not in the disk cache
+     */
+    public ImageInfo peekDimensions(String urlString) {
+        if (mImageCache == null || TextUtils.isEmpty(urlString)) {
+            return null;
+        }
+        return mImageCache.peekDimensions(urlString);
+    }
+
     /**
      * Returns true if the current work has been canceled or if there was no work in
      * progress on this image view.
@@ -119,7 +484,7 @@ public class ImageFetcher {
         if (bitmapWorkerTask != null) {
             final String preUrl = bitmapWorkerTask.mUrl;
             if (preUrl == null || !preUrl.equals(urlString)) {
-                bitmapWorkerTask.cancel(true);
+                bitmapWorkerTask.abort();
             } else {
                 // The same work is already in progress.
                 return false;
@@ -146,16 +511,71 @@ public class ImageFetcher {
     /**
      * The actual AsyncTask that will asynchronously process the image.
      */
-    private class MyAsyncTask extends AsyncTask<Void, Void, Object> {
+    private class MyAsyncTask extends AsyncTask<Void, Bitmap, Object>
+            implements ImageDownloader.Listener {
         private String mUrl;
         private final WeakReference<ImageView> imageViewReference;
         private boolean mDiskCacheEnabled;
+        private int mDecodeFormat;
         private int mCacheState = ImageFetcherListener.CACHE_MISS;
+        private boolean mPreviewShown = false;
+        private int mNextPreviewAttempt = PREVIEW_FIRST_ATTEMPT_BYTES;
+
+        // Handles used to abort in-flight work from the UI thread. Every decode gets fresh
+        // options, published here so the one in progress can be asked to stop.
+        private volatile BitmapFactory.Options mDecodeOptions;
+        private volatile HttpURLConnection mConnection;
+
+        private BitmapDrawable mFetchedDrawable;
+        private boolean mDownloadFailed;
+
+        // Set when a batch lookup already missed the disk cache for this request
+        private boolean mSkipDiskCache = false;
+
+        // Network attempts made before this task, for the retry backoff
+        private int mAttempt = 0;
 
-        public MyAsyncTask(String url, ImageView imageView, boolean diskCacheEnabled) {
+        // Local source of the image, null for network images
+        private final ImageSource mSource;
+
+        // When the request was bound to its view, to skip the fade of fast results
+        private final long mBindTime = SystemClock.uptimeMillis();
+
+        // Identifies the trace events of this request
+        private final int mTraceId = PipelineTrace.newRequestId();
+
+        public MyAsyncTask(String url, ImageView imageView, boolean diskCacheEnabled, int decodeFormat) {
             this.mUrl = url;
             this.imageViewReference = new WeakReference(imageView);
-            this.mDiskCacheEnabled = diskCacheEnabled;
+            this.mDecodeFormat = decodeFormat;
+            this.mSource = getSource(url);
+            // Local images are already on the device, don't copy them to the disk cache
+            this.mDiskCacheEnabled = diskCacheEnabled && mSource == null;
+            PipelineTrace.event(PipelineTrace.EVENT_QUEUED, mTraceId, 0, url);
+        }
+
+        /**
+         * Cancel this task and abort whatever it is doing right now: the connection is closed
+         * in the background so a blocked read fails, the decode is asked to stop and the download loop, the disk
+         * cache write and the following steps check {@link #isCancelled()}. The worker thread
+         * becomes free for the next request without finishing work nobody will see.
+         * Note that decode cancellation is a no-op from Android 7.0.
+         */
+        public void abort() {
+            cancel(true);
+            final BitmapFactory.Options options = mDecodeOptions;
+            if (options != null) {
+                options.requestCancelDecode();
+            }
+            final HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                DISCONNECT_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.disconnect();
+                    }
+                });
+            }
         }
 
         /**
@@ -163,9 +583,8 @@ public class ImageFetcher {
          */
         @Override
         protected Object doInBackground(Void... params) {
-            Object retObj = null;
-
             // Wait here if work is paused and the task is not cancelled
+            PipelineTrace.beginSection(PipelineTrace.SECTION_QUEUE);
             synchronized (mPauseWorkLock) {
                 while (mPauseWork && !isCancelled()) {
                     try {
@@ -174,6 +593,12 @@ public class ImageFetcher {
                     }
                 }
             }
+            PipelineTrace.endSection();
+            PipelineTrace.event(PipelineTrace.EVENT_STARTED, mTraceId, 0, mUrl);
+
+            if (mSource != null) {
+                return decodeFromSource();
+            }
 
             // If the image cache is available and this task has not been cancelled by another
             // thread and the ImageView that was originally bound to this task is still bound back
@@ -181,41 +606,198 @@ public class ImageFetcher {
             // the cache
             if (mImageCache != null
                     && mDiskCacheEnabled
+                    && !mSkipDiskCache
                     && mImageCache.getDiskLruCache() != null
                     && !isCancelled()
                     && getAttachedImageView() != null
                     && !mExitTasksEarly) {
                 int[] measure = getImageViewMeasures(getAttachedImageView());
-                Bitmap bitmap = mImageCache.getBitmapFromDiskCache(mUrl, measure);
+                Bitmap bitmap;
+                PipelineTrace.beginSection(PipelineTrace.SECTION_DISK_READ);
+                try {
+                    bitmap = mImageCache.getBitmapFromEncodedCache(
+                            mUrl, measure, mDecodeFormat, newDecodeOptions());
+                    if (bitmap == null) {
+                        if (mProgressiveEnabled) {
+                            publishDiskCachePreview(measure);
+                        }
+                        bitmap = mImageCache.getBitmapFromDiskCache(
+                                mUrl, measure, mDecodeFormat, newDecodeOptions());
+                    }
+                } finally {
+                    PipelineTrace.endSection();
+                }
                 if (bitmap != null) {
                     mCacheState = ImageFetcherListener.DISK_CACHE_HIT;
+                    PipelineTrace.event(PipelineTrace.EVENT_DISK_HIT, mTraceId, 0, mUrl);
                     return convertToBitmapDrawable(bitmap);
                 }
             }
 
+            if (isCancelled() || mExitTasksEarly) {
+                return null;
+            }
+
+            if (mNetworkPaused) {
+                // Only cache hits are served while flinging, hand the thread back and let
+                // setNetworkPaused(false) restart this request if its view is still showing
+                return DEFERRED;
+            }
+
+            return fetchWithRetry();
+        }
+
+        /**
+         * Decode a local image straight from its source
+         */
+        private Object decodeFromSource() {
+            if (isCancelled() || mExitTasksEarly || getAttachedImageView() == null) {
+                return null;
+            }
+
+            int[] measure = getImageViewMeasures(getAttachedImageView());
+            try {
+                Bitmap bitmap = mSource.decode(mUrl, measure[0], measure[1], mImageCache,
+                        mDecodeFormat, newDecodeOptions());
+                return convertToBitmapDrawable(bitmap);
+            } catch (IOException e) {
+                DebugLog.e(TAG, "Local source: " + e);
+            } catch (RuntimeException e) {
+                DebugLog.e(TAG, "Local source: " + e);
+            }
+            return null;
+        }
+
+        /**
+         * Fetch from the network. A transient failure returns {@link #RETRY} so the thread is
+         * handed back during the backoff, and {@link #scheduleRetry()} runs the next attempt
+         * as a new task. Urls that still fail go to the negative cache, and failures are
+         * reported to the host circuit breaker.
+         */
+        private Object fetchWithRetry() {
+            final String host = getHost(mUrl);
+            if (!mCircuitBreaker.allowRequest(host)) {
+                DebugLog.d(TAG, "Host is down, skip: " + mUrl);
+                return null;
+            }
+
+            final int result = fetchFromNetwork();
+            switch (result) {
+                case FETCH_SUCCESS:
+                    mCircuitBreaker.onSuccess(host);
+                    return mFetchedDrawable;
+
+                case FETCH_CANCELLED:
+                    mCircuitBreaker.onCancelled(host);
+                    return null;
+
+                case FETCH_PERMANENT_FAILURE:
+                    // The host answered, it is the url that is broken
+                    mCircuitBreaker.onSuccess(host);
+                    mNegativeCache.put(mUrl, PERMANENT_FAILURE_TTL);
+                    return null;
+
+                default:
+                    mCircuitBreaker.onFailure(host);
+                    if (isCancelled() || mExitTasksEarly) {
+                        return null;
+                    }
+                    if (mAttempt >= MAX_RETRIES) {
+                        mNegativeCache.put(mUrl, TRANSIENT_FAILURE_TTL);
+                        return null;
+                    }
+                    return RETRY;
+            }
+        }
+
+        /**
+         * Run the next attempt as a new task after base * 2^attempt milliseconds, randomized
+         * by +/-50% so that many requests failing together don't retry together. Nothing runs
+         * if the view was bound to something else meanwhile. Called on the UI thread.
+         */
+        private void scheduleRetry() {
+            final long delay = (long) (RETRY_BASE_DELAY * (1 << mAttempt)
+                    * (0.5 + mRandom.nextDouble()));
+            mMainHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    final ImageView imageView = getAttachedImageView();
+                    if (imageView == null || isCancelled() || mExitTasksEarly) {
+                        return;
+                    }
+                    final MyAsyncTask task = new MyAsyncTask(mUrl, imageView,
+                            mDiskCacheEnabled, mDecodeFormat);
+                    task.mAttempt = mAttempt + 1;
+                    // This request already missed the disk cache
+                    task.mSkipDiskCache = true;
+                    bindPlaceholder(imageView, task);
+                    task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                }
+            }, delay);
+        }
+
+        /**
+         * One attempt to download and process the image.
+         *
+         * @return One of the FETCH_* results, the drawable is in mFetchedDrawable on success
+         */
+        private int fetchFromNetwork() {
             HttpURLConnection urlConnection = null;
+            long startTime = SystemClock.uptimeMillis();
             try {
                 URL url = new URL(mUrl);
                 urlConnection = (HttpURLConnection) url.openConnection();
+                urlConnection.setConnectTimeout(CONNECT_TIMEOUT);
+                urlConnection.setReadTimeout(READ_TIMEOUT);
+                mConnection = urlConnection;
+                if (isCancelled()) {
+                    // Aborted before the connection was published
+                    return FETCH_CANCELLED;
+                }
                 urlConnection.connect();
 
-                if (urlConnection.getHeaderField(CONTENT_TYPE).contains(CONTENT_TYPE_IMAGE)) {
-                    if (!mExitTasksEarly) {
-                        Bitmap bitmap = processBitmap(mUrl, urlConnection);
-                        retObj = convertToBitmapDrawable(bitmap);
-                    }
+                final int responseCode = urlConnection.getResponseCode();
+                if (responseCode >= 500
+                        || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                        || responseCode == HTTP_TOO_MANY_REQUESTS) {
+                    return FETCH_TRANSIENT_FAILURE;
+                }
+                final String contentType = urlConnection.getHeaderField(CONTENT_TYPE);
+                if (responseCode >= 400
+                        || contentType == null
+                        || !contentType.contains(CONTENT_TYPE_IMAGE)) {
+                    return FETCH_PERMANENT_FAILURE;
+                }
+
+                if (mExitTasksEarly) {
+                    return FETCH_CANCELLED;
                 }
+                Bitmap bitmap = processBitmap(mUrl, urlConnection, startTime);
+                if (isCancelled() || mExitTasksEarly) {
+                    return FETCH_CANCELLED;
+                }
+                if (bitmap == null) {
+                    // Truncated bodies fail the download, a full body that can't be decoded
+                    // is not going to get better
+                    return mDownloadFailed ? FETCH_TRANSIENT_FAILURE : FETCH_PERMANENT_FAILURE;
+                }
+                mFetchedDrawable = convertToBitmapDrawable(bitmap);
+                return FETCH_SUCCESS;
+            } catch (MalformedURLException e) {
+                DebugLog.e(TAG, "Url exception: " + e);
+                return FETCH_PERMANENT_FAILURE;
             } catch (IOException e) {
                 DebugLog.e(TAG, "IO exception: " + e);
+                return isCancelled() ? FETCH_CANCELLED : FETCH_TRANSIENT_FAILURE;
             } catch (Exception e) {
                 DebugLog.e(TAG, "Exception: " + e);
+                return isCancelled() ? FETCH_CANCELLED : FETCH_PERMANENT_FAILURE;
             } finally {
+                mConnection = null;
                 if (urlConnection != null) {
                     urlConnection.disconnect();
                 }
             }
-
-            return retObj;
         }
 
         /**
@@ -223,50 +805,189 @@ public class ImageFetcher {
          */
         @Override
         protected void onPostExecute(Object value) {
-            boolean success = false;
+            deliverResult(value);
+        }
 
-            // if cancel was called on this task or the "exit early" flag is set then we're done
-            if (isCancelled() || mExitTasksEarly) {
-                value = null;
+        /**
+         * Bind the result to the imageView and notify the listener, on the UI thread
+         */
+        private void deliverResult(Object value) {
+            final Object result = value;
+            PipelineTrace.beginSection(PipelineTrace.SECTION_DELIVER);
+            try {
+                boolean success = false;
+
+                // if cancel was called on this task or the "exit early" flag is set then we're done
+                if (isCancelled() || mExitTasksEarly) {
+                    value = null;
+                }
+
+                if (value == DEFERRED) {
+                    mDeferredTasks.add(this);
+                    return;
+                }
+
+                if (value == RETRY) {
+                    scheduleRetry();
+                    return;
+                }
+
+                final ImageView imageView = getAttachedImageView();
+                if (value instanceof BitmapDrawable
+                        && imageView != null) {
+                    success = true;
+                    trackDisplayed(imageView, (BitmapDrawable) value);
+                    if (mPreviewShown) {
+                        // Fading from the placeholder would hide the preview, swap directly
+                        imageView.setImageDrawable((BitmapDrawable) value);
+                    } else if (SystemClock.uptimeMillis() - mBindTime < mFadeInThreshold) {
+                        // The placeholder barely showed, a fade would only cost allocations
+                        imageView.setImageDrawable((BitmapDrawable) value);
+                    } else {
+                        setImageDrawable(imageView, (BitmapDrawable) value);
+                    }
+                }
+
+                PipelineTrace.event(
+                        PipelineTrace.EVENT_DELIVERED, mTraceId, success ? 1 : 0, mUrl);
+                if (mListener != null) {
+                    mListener.onImageLoaded(mUrl, success, mCacheState);
+                }
+            } finally {
+                releaseDisplayHold(result);
+                PipelineTrace.endSection();
             }
+        }
 
-            final ImageView imageView = getAttachedImageView();
-            if (value instanceof BitmapDrawable
-                    && imageView != null) {
-                success = true;
-                setImageDrawable(imageView, (BitmapDrawable) value);
+        /**
+         * Show a preview while the full quality bitmap is being processed
+         */
+        @Override
+        protected void onProgressUpdate(Bitmap... values) {
+            if (isCancelled() || mExitTasksEarly) {
+                return;
             }
 
-            if (mListener != null) {
-                mListener.onImageLoaded(mUrl, success, mCacheState);
+            final ImageView imageView = getAttachedImageView();
+            if (imageView != null && values[0] != null) {
+                // Keep an AsyncDrawable bound so the view still points to this task
+                final AsyncDrawable preview =
+                        new AsyncDrawable(mContext.getResources(), values[0], this);
+                trackDisplayed(imageView, preview);
+                imageView.setImageDrawable(preview);
+                mPreviewShown = true;
             }
         }
 
         @Override
         protected void onCancelled(Object value) {
             super.onCancelled(value);
+            releaseDisplayHold(value);
+            PipelineTrace.event(PipelineTrace.EVENT_CANCELLED, mTraceId, 0, mUrl);
             synchronized (mPauseWorkLock) {
                 mPauseWorkLock.notifyAll();
             }
         }
 
         /**
-         * Convert bitmap to BitmapDrawable
+         * Convert bitmap to a drawable whose bitmap can be reused once evicted and no longer
+         * shown. It is held as displayed until {@link #deliverResult(Object)} or
+         * {@link #onCancelled(Object)} is done with it, so it isn't reused before it gets to
+         * its view.
          */
         private BitmapDrawable convertToBitmapDrawable(Bitmap bitmap) {
             BitmapDrawable drawable = null;
 
             if (bitmap != null) {
-                // Running on Honeycomb or newer, so wrap in a standard BitmapDrawable
-                drawable = new BitmapDrawable(mContext.getResources(), bitmap);
+                PipelineTrace.event(PipelineTrace.EVENT_DECODED, mTraceId,
+                        (long) bitmap.getWidth() * bitmap.getHeight(), mUrl);
+                final RecyclingBitmapDrawable recycling =
+                        new RecyclingBitmapDrawable(mContext.getResources(), bitmap);
+                recycling.setIsDisplayed(true);
+                drawable = recycling;
                 if (mImageCache != null) {
-                    mImageCache.addBitmapToCache(mUrl, drawable, mDiskCacheEnabled);
+                    mImageCache.addBitmapToCache(mUrl, drawable, mDecodeFormat);
                 }
             }
 
             return drawable;
         }
 
+        /**
+         * Publish a coarse decode of a large disk cache hit, before the full decode.
+         */
+        private void publishDiskCachePreview(int[] measure) {
+            ImageInfo imageInfo = mImageCache.peekDimensions(mUrl);
+            if (imageInfo != null && isPreviewWorthwhile(imageInfo, measure)) {
+                Bitmap preview = mImageCache.getPreviewFromDiskCache(
+                        mUrl, measure, imageInfo, PREVIEW_SAMPLE_FACTOR);
+                if (preview != null && !isCancelled()) {
+                    publishProgress(preview);
+                }
+            }
+        }
+
+        /**
+         * Called while the body is downloading, stop once nobody wants the result
+         */
+        @Override
+        public boolean onBytesDownloaded(SlabBuffer buffer) {
+            if (mExitTasksEarly || isCancelled()) {
+                return false;
+            }
+            attemptPreview(buffer);
+            return true;
+        }
+
+        /**
+         * Try to decode a preview from the scans of a progressive JPEG received so far, at
+         * growing sizes until one succeeds.
+         */
+        private void attemptPreview(SlabBuffer buffer) {
+            if (!mProgressiveEnabled
+                    || mPreviewShown
+                    || mNextPreviewAttempt > PREVIEW_MAX_ATTEMPT_BYTES
+                    || buffer.size() < mNextPreviewAttempt
+                    || isCancelled()) {
+                return;
+            }
+            mNextPreviewAttempt *= 2;
+
+            // At most PREVIEW_MAX_ATTEMPT_BYTES, copied to the heap a few times per image
+            byte[] partial = buffer.toByteArray(buffer.size());
+            if (!ImageDecoder.isProgressiveJpeg(partial, partial.length)) {
+                // Baseline images would only show their top rows, don't try again
+                mNextPreviewAttempt = Integer.MAX_VALUE;
+                return;
+            }
+
+            int[] measure = getImageViewMeasures(getAttachedImageView());
+            ImageInfo imageInfo = ImageInfo.fromByteArray(partial);
+            if (imageInfo == null || !isPreviewWorthwhile(imageInfo, measure)) {
+                mNextPreviewAttempt = Integer.MAX_VALUE;
+                return;
+            }
+
+            Bitmap preview = ImageDecoder.decodePreviewFromByteArray(
+                    partial, partial.length, measure[0], measure[1], PREVIEW_SAMPLE_FACTOR);
+            if (preview != null) {
+                mNextPreviewAttempt = Integer.MAX_VALUE;
+                publishProgress(preview);
+            }
+        }
+
+        /**
+         * Only large decodes are slow enough to be worth a preview
+         */
+        private boolean isPreviewWorthwhile(ImageInfo imageInfo, int[] measure) {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            imageInfo.applyTo(options);
+            int sampleSize = ImageDecoder.calculateInSampleSize(options, measure[0], measure[1]);
+            long pixels = (long) (imageInfo.getWidth() / sampleSize)
+                    * (imageInfo.getHeight() / sampleSize);
+            return pixels >= PREVIEW_MIN_PIXELS;
+        }
+
         /**
          * Returns the ImageView associated with this task as long as the ImageView's task still
          * points to this task as well. Returns null otherwise.
@@ -283,70 +1004,65 @@ public class ImageFetcher {
         }
 
         /**
-         * Process bitmap in a background thread and be long running
+         * Process bitmap in a background thread and be long running. The downloaded bytes are
+         * decoded from memory, the disk cache write is left to the write-behind queue.
          */
-        private Bitmap processBitmap(String urlString, HttpURLConnection urlConnection) {
-            Bitmap bitmap;
-            DiskLruCache diskLruCache;
-            DiskLruCache.Snapshot snapshot;
-            FileDescriptor fileDescriptor = null;
-
-            byte[] byteArray = downloadByteArray(urlConnection);
+        private Bitmap processBitmap(String urlString, HttpURLConnection urlConnection,
+                                     long startTime) {
+            SlabBuffer buffer;
+            PipelineTrace.beginSection(PipelineTrace.SECTION_DOWNLOAD);
+            try {
+                buffer = ImageDownloader.download(urlConnection, this);
+            } finally {
+                PipelineTrace.endSection();
+            }
+            PipelineTrace.event(PipelineTrace.EVENT_DOWNLOADED, mTraceId,
+                    buffer != null ? buffer.size() : -1, urlString);
+            mDownloadFailed = buffer == null;
+            // Download time is the cost of fetching this image again
+            long fetchCost = SystemClock.uptimeMillis() - startTime;
 
-            if (mExitTasksEarly
-                    || byteArray == null
-                    || byteArray.length == 0) {
+            if (buffer == null) {
                 return null;
             }
+            try {
+                if (mExitTasksEarly
+                        || isCancelled()
+                        || buffer.size() == 0) {
+                    return null;
+                }
 
-            if (mImageCache != null
-                    && mDiskCacheEnabled
-                    && mImageCache.getDiskLruCache() != null) {
-                FileInputStream fileInputStream = null;
-
-                diskLruCache = mImageCache.getDiskLruCache();
-                String key = ImageCache.hashKeyForDisk(urlString);
-
-                try {
-                    snapshot = diskLruCache.get(key);
-                    if (snapshot == null) {
-                        DiskLruCache.Editor editor = diskLruCache.edit(key);
-                        if (editor != null) {
-                            OutputStream out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            out.write(byteArray);
-                            editor.commit();
-                            out.close();
-                        }
-                        snapshot = diskLruCache.get(key);
-                    }
-
-                    if (snapshot != null) {
-                        fileInputStream =
-                                (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                        fileDescriptor = fileInputStream.getFD();
-                    }
-
-                } catch (IOException e) {
-                    DebugLog.e(TAG, "Process bitmap: " + e.getLocalizedMessage());
-                } catch (IllegalStateException e) {
-                    DebugLog.e(TAG, "Process bitmap: " + e.getLocalizedMessage());
-                } finally {
-                    if (fileDescriptor == null && fileInputStream != null) {
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException e) {
-                        }
-                    }
+                // Bounds of the in-memory bytes, so they are decoded in a single pass now and
+                // the disk cache file on later hits
+                ImageInfo imageInfo = ImageInfo.fromBuffer(buffer);
+                if (imageInfo == null) {
+                    // Not an image that can be decoded, don't cache it
+                    return null;
                 }
+                if (mImageCache != null && mDiskCacheEnabled) {
+                    mImageCache.addEncodedToCache(urlString, buffer, imageInfo);
+                    mImageCache.addToDiskCache(urlString, buffer, imageInfo, fetchCost);
+                }
+
+                int[] measure = getImageViewMeasures(getAttachedImageView());
+                return ImageDecoder.decodeSampledBitmapFromBuffer(buffer, measure[0], measure[1], mImageCache, mDecodeFormat, imageInfo, newDecodeOptions());
+            } finally {
+                buffer.release();
             }
+        }
 
-            int[] measure = getImageViewMeasures(getAttachedImageView());
-            if (fileDescriptor != null) {
-                bitmap = ImageDecoder.decodeSampledBitmapFromDescriptor(fileDescriptor, measure[0], measure[1], mImageCache);
-            } else {
-                bitmap = ImageDecoder.decodeSampledBitmapFromByteArray(byteArray, measure[0], measure[1], mImageCache);
+        /**
+         * Return fresh options for the next decode, published for {@link #abort()}. Nothing of
+         * a previous decode, e.g. its inBitmap or sample size, carries over.
+         */
+        private BitmapFactory.Options newDecodeOptions() {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            mDecodeOptions = options;
+            if (isCancelled()) {
+                // Aborted before the options were published
+                options.requestCancelDecode();
             }
-            return bitmap;
+            return options;
         }
 
         private int[] getImageViewMeasures(ImageView imageView) {
@@ -362,61 +1078,114 @@ public class ImageFetcher {
         }
     }
 
-    /**
-     * Download a bitmap from a URL in byte array
-     */
-    private byte[] downloadByteArray(HttpURLConnection urlConnection) {
-        BufferedInputStream inputStream = null;
-        ByteArrayOutputStream outputStream = null;
-        byte[] byteArray = null;
-
+    private static String getHost(String urlString) {
         try {
-            inputStream = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            outputStream = new ByteArrayOutputStream(IO_BUFFER_SIZE);
-
-            int b;
-            while ((b = inputStream.read()) != -1) {
-                outputStream.write(b);
-            }
-            byteArray = outputStream.toByteArray();
-
-        } catch (final MalformedURLException e) {
-            DebugLog.e(TAG, "Url exception: " + e.getLocalizedMessage());
-        } catch (IOException e) {
-            DebugLog.e(TAG, "IO exception string value: " + e.getLocalizedMessage());
-        }
-        finally {
-            try {
-                if (outputStream != null) {
-                    outputStream.close();
-                }
-                if (inputStream != null) {
-                    inputStream.close();
-                }
-            } catch (final IOException e) {}
+            return new URL(urlString).getHost();
+        } catch (MalformedURLException e) {
+            return "";
         }
-
-        return byteArray;
     }
 
     /**
      * A custom Drawable that will be attached to the imageView while the work is in progress.
      * Contains a reference to the actual worker task, so that it can be stopped if a new binding is
      * required, and makes sure that only the last started worker process can bind its result,
-     * independently of the finish order.
+     * independently of the finish order. The placeholder of a view is reused by its next binds,
+     * pointing to the new task each time.
      */
     private static class AsyncDrawable extends BitmapDrawable {
-        private final WeakReference<MyAsyncTask> bitmapWorkerTaskReference;
+        private WeakReference<MyAsyncTask> bitmapWorkerTaskReference;
 
         public AsyncDrawable(Resources res, Bitmap bitmap, MyAsyncTask bitmapWorkerTask) {
             super(res, bitmap);
-            bitmapWorkerTaskReference =
-                    new WeakReference(bitmapWorkerTask);
+            setBitmapWorkerTask(bitmapWorkerTask);
         }
 
         public MyAsyncTask getBitmapWorkerTask() {
-            return bitmapWorkerTaskReference.get();
+            return bitmapWorkerTaskReference != null ? bitmapWorkerTaskReference.get() : null;
+        }
+
+        public void setBitmapWorkerTask(MyAsyncTask bitmapWorkerTask) {
+            bitmapWorkerTaskReference = bitmapWorkerTask != null
+                    ? new WeakReference<MyAsyncTask>(bitmapWorkerTask) : null;
+        }
+    }
+
+    /**
+     * The drawables reused by every bind of an ImageView: its placeholder, the background shown
+     * under a fade and the transition itself. Binding during a fling then allocates close to
+     * nothing besides the task.
+     */
+    private static class ViewBinding {
+        private final Bitmap mLoadingBitmap;
+        private final AsyncDrawable mPlaceholder;
+        private BitmapDrawable mBackground;
+        private TransitionDrawable mTransition;
+        // The drawable counted as shown by the view, see trackDisplayed()
+        private RecyclingBitmapDrawable mShown;
+
+        private ViewBinding(Resources res, Bitmap loadingBitmap) {
+            this.mLoadingBitmap = loadingBitmap;
+            this.mPlaceholder = new AsyncDrawable(res, loadingBitmap, null);
+        }
+    }
+
+    /**
+     * Return the reused drawables of a view, made again if the loading image changed
+     */
+    private ViewBinding getBinding(ImageView imageView) {
+        ViewBinding binding = mBindings.get(imageView);
+        if (binding == null || binding.mLoadingBitmap != mLoadingBitmap) {
+            final RecyclingBitmapDrawable shown = binding != null ? binding.mShown : null;
+            binding = new ViewBinding(mContext.getResources(), mLoadingBitmap);
+            binding.mShown = shown;
+            mBindings.put(imageView, binding);
+        }
+        return binding;
+    }
+
+    /**
+     * Count the drawable as shown by the view instead of the previous one, before it is set on
+     * the view, so the bitmap of a cached drawable is only reused once no view shows it. Views
+     * changed outside of this class keep their count, their bitmap is then never reused.
+     *
+     * @return false if the bitmap of the drawable was already taken for reuse, it must not be
+     *         shown
+     */
+    private boolean trackDisplayed(ImageView imageView, Drawable drawable) {
+        final ViewBinding binding = getBinding(imageView);
+        final RecyclingBitmapDrawable shown = drawable instanceof RecyclingBitmapDrawable
+                ? (RecyclingBitmapDrawable) drawable : null;
+        if (shown == binding.mShown) {
+            return true;
         }
+        if (shown != null && !shown.setIsDisplayed(true)) {
+            return false;
+        }
+        if (binding.mShown != null) {
+            binding.mShown.setIsDisplayed(false);
+        }
+        binding.mShown = shown;
+        return true;
+    }
+
+    /**
+     * Drop the hold a task keeps on the drawable it made until it is delivered
+     */
+    private static void releaseDisplayHold(Object value) {
+        if (value instanceof RecyclingBitmapDrawable) {
+            ((RecyclingBitmapDrawable) value).setIsDisplayed(false);
+        }
+    }
+
+    /**
+     * Show the placeholder of the view, pointing to the task now in charge of it, or to none
+     */
+    private void bindPlaceholder(ImageView imageView, MyAsyncTask task) {
+        final AsyncDrawable placeholder = getBinding(imageView).mPlaceholder;
+        placeholder.setBitmapWorkerTask(task);
+        trackDisplayed(imageView, placeholder);
+        imageView.setImageDrawable(placeholder);
     }
 
     /**
@@ -428,15 +1197,27 @@ public class ImageFetcher {
      */
     private void setImageDrawable(ImageView imageView, Drawable drawable) {
         if (mFadeInBitmap) {
-            // Transition drawable with a transparent drawable and the final drawable
-            final TransitionDrawable td =
-                    new TransitionDrawable(new Drawable[] {
-                            new ColorDrawable(ContextCompat.getColor(mContext, android.R.color.transparent)),
-                            drawable
-                    });
+            final ViewBinding binding = getBinding(imageView);
+            TransitionDrawable td = binding.mTransition;
+            if (td == null) {
+                // Transition drawable with a transparent drawable and the final drawable
+                td = new TransitionDrawable(new Drawable[] {
+                        new ColorDrawable(ContextCompat.getColor(mContext, android.R.color.transparent)),
+                        drawable
+                });
+                td.setId(1, TRANSITION_LAYER_IMAGE);
+                binding.mTransition = td;
+            } else {
+                td.setDrawableByLayerId(TRANSITION_LAYER_IMAGE, drawable);
+                // Unbind first, so the view measures the transition for the new image
+                imageView.setImageDrawable(null);
+            }
             // Set background to loading bitmap
-            imageView.setBackground(
-                    new BitmapDrawable(mContext.getResources(), mLoadingBitmap));
+            if (binding.mBackground == null) {
+                binding.mBackground =
+                        new BitmapDrawable(mContext.getResources(), mLoadingBitmap);
+            }
+            imageView.setBackground(binding.mBackground);
 
             imageView.setImageDrawable(td);
             td.startTransition(FADE_IN_TIME);
@@ -466,13 +1247,52 @@ public class ImageFetcher {
         }
     }
 
+    /**
+     * Pause network work only. While paused, requests are still served from the memory and disk
+     * caches but cache misses are deferred without holding a worker thread. When resumed, the
+     * deferred requests whose ImageView is still attached and still bound to the same url are
+     * started again, the others (scrolled off screen or rebound) are dropped.
+     * This is driven by {@link ScrollScheduler} and must be called on the UI thread.
+     */
+    public void setNetworkPaused(boolean networkPaused) {
+        if (mNetworkPaused == networkPaused) {
+            return;
+        }
+        mNetworkPaused = networkPaused;
+
+        if (!networkPaused) {
+            final ArrayList<MyAsyncTask> deferredTasks = new ArrayList<MyAsyncTask>(mDeferredTasks);
+            mDeferredTasks.clear();
+            for (MyAsyncTask deferredTask : deferredTasks) {
+                final ImageView imageView = deferredTask.getAttachedImageView();
+                if (imageView == null || imageView.getWindowToken() == null) {
+                    continue;
+                }
+                MyAsyncTask task = new MyAsyncTask(deferredTask.mUrl, imageView,
+                        deferredTask.mDiskCacheEnabled, deferredTask.mDecodeFormat);
+                bindPlaceholder(imageView, task);
+                task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+        }
+    }
+
+    /**
+     * Hold the disk cache writes back while the user scrolls, so flash I/O doesn't compete
+     * with the frames. Driven by {@link ScrollScheduler}.
+     */
+    public void setDiskWritesPaused(boolean diskWritesPaused) {
+        if (mImageCache != null) {
+            mImageCache.setDiskWritesPaused(diskWritesPaused);
+        }
+    }
+
     /**
      * Cancels any pending work attached to the provided ImageView
      */
     public boolean cancelWork(ImageView imageView) {
         final MyAsyncTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
         if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
+            bitmapWorkerTask.abort();
             return true;
         }
         return false;
@@ -490,17 +1310,21 @@ public class ImageFetcher {
      * Clear all data in memory cache and disk cache
      */
     public void clearCache() {
+        mNegativeCache.clear();
+        mCircuitBreaker.clear();
         if (mImageCache != null) {
             mImageCache.clearCache();
         }
     }
 
     /**
-     * You should close disk cache when not use
+     * You should close disk cache when not use. The cache is shared with the other fetchers
+     * using the same cache directory and is only closed once all of them released it.
      */
     public void closeCache() {
-        if (mImageCache != null) {
-            mImageCache.closeCache();
+        if (mImageCache != null && !mCacheReleased) {
+            mCacheReleased = true;
+            mImageCache.release();
         }
     }
 }
\ No newline at end of file
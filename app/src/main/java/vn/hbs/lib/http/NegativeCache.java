@@ -0,0 +1,56 @@
+package vn.hbs.lib.http;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of urls that recently failed to load, each remembered until its own expiry
+ * time. Lets {@link ImageFetcher} skip the connection for a url it knows is broken instead of
+ * hitting the same 404 or dead host every time a cell is bound again.
+ */
+public class NegativeCache {
+    private final int mMaxSize;
+    private final LinkedHashMap<String, Long> mExpiries;
+
+    public NegativeCache(final int maxSize) {
+        this.mMaxSize = maxSize;
+        this.mExpiries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > mMaxSize;
+            }
+        };
+    }
+
+    /**
+     * Remember that the url failed, for ttlMillis milliseconds
+     */
+    public synchronized void put(String url, long ttlMillis) {
+        mExpiries.put(url, SystemClock.elapsedRealtime() + ttlMillis);
+    }
+
+    /**
+     * Return true if the url failed recently and hasn't expired yet
+     */
+    public synchronized boolean contains(String url) {
+        final Long expiry = mExpiries.get(url);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry <= SystemClock.elapsedRealtime()) {
+            mExpiries.remove(url);
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void remove(String url) {
+        mExpiries.remove(url);
+    }
+
+    public synchronized void clear() {
+        mExpiries.clear();
+    }
+}
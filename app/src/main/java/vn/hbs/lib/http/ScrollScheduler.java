@@ -0,0 +1,122 @@
+package vn.hbs.lib.http;
+
+import android.os.SystemClock;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+import android.widget.AbsListView;
+
+/**
+ * Scroll listener that schedules the work of an {@link ImageFetcher} according to the scroll
+ * velocity of a RecyclerView or an AbsListView (ListView, GridView).
+ * <p>
+ * While the list moves faster than the fling threshold only memory and disk cache hits are
+ * served. When it slows down or settles, network work resumes for the views still on screen
+ * and requests for views that scrolled off before starting are dropped. Disk cache writes are
+ * held back for as long as the list moves.
+ * <pre>
+ *     recyclerView.addOnScrollListener(new ScrollScheduler(imageFetcher));
+ *     listView.setOnScrollListener(new ScrollScheduler(imageFetcher));
+ * </pre>
+ */
+public class ScrollScheduler extends RecyclerView.OnScrollListener
+        implements AbsListView.OnScrollListener {
+
+    // Default fling threshold in pixels per second
+    public static final int DEFAULT_FLING_PIXELS_PER_SECOND = 4000;
+
+    private final ImageFetcher mImageFetcher;
+    private final int mFlingPixelsPerSecond;
+
+    private float mVelocity = 0;
+    private long mLastEventTime = 0;
+
+    // AbsListView doesn't report pixel offsets, they are estimated from its first child
+    private int mListScrollState = AbsListView.OnScrollListener.SCROLL_STATE_IDLE;
+    private int mLastFirstVisibleItem = -1;
+    private int mLastFirstChildTop = 0;
+
+    public ScrollScheduler(ImageFetcher imageFetcher) {
+        this(imageFetcher, DEFAULT_FLING_PIXELS_PER_SECOND);
+    }
+
+    public ScrollScheduler(ImageFetcher imageFetcher, int flingPixelsPerSecond) {
+        this.mImageFetcher = imageFetcher;
+        this.mFlingPixelsPerSecond = flingPixelsPerSecond;
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            settle();
+        } else {
+            mImageFetcher.setDiskWritesPaused(true);
+        }
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        if (recyclerView.getScrollState() == RecyclerView.SCROLL_STATE_IDLE) {
+            // Programmatic jump or layout pass
+            return;
+        }
+        updateVelocity(Math.max(Math.abs(dx), Math.abs(dy)));
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        mListScrollState = scrollState;
+        if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE) {
+            settle();
+        } else {
+            mImageFetcher.setDiskWritesPaused(true);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount) {
+        final View firstChild = view.getChildAt(0);
+        if (firstChild == null) {
+            return;
+        }
+        final int firstChildTop = firstChild.getTop();
+        final int lastFirstVisibleItem = mLastFirstVisibleItem;
+        final int lastFirstChildTop = mLastFirstChildTop;
+        mLastFirstVisibleItem = firstVisibleItem;
+        mLastFirstChildTop = firstChildTop;
+        if (lastFirstVisibleItem < 0
+                || mListScrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE) {
+            // Programmatic jump or layout pass
+            return;
+        }
+
+        // The items that left or entered the top are counted at the mean height of the
+        // visible ones, the offset within the first item is exact
+        final int itemExtent = Math.max(1, view.getHeight() / Math.max(1, visibleItemCount));
+        final int distance = (firstVisibleItem - lastFirstVisibleItem) * itemExtent
+                + lastFirstChildTop - firstChildTop;
+        updateVelocity(Math.abs(distance));
+    }
+
+    /**
+     * Smooth the velocity over the last events and pause network work above the threshold
+     */
+    private void updateVelocity(int distance) {
+        final long now = SystemClock.uptimeMillis();
+        final long elapsed = now - mLastEventTime;
+        mLastEventTime = now;
+        if (elapsed <= 0 || elapsed > 1000) {
+            // First event of a gesture, no meaningful velocity yet
+            return;
+        }
+
+        mVelocity = 0.5f * mVelocity + 0.5f * (distance * 1000f / elapsed);
+        mImageFetcher.setNetworkPaused(mVelocity > mFlingPixelsPerSecond);
+    }
+
+    private void settle() {
+        mVelocity = 0;
+        mImageFetcher.setNetworkPaused(false);
+        mImageFetcher.setDiskWritesPaused(false);
+    }
+}
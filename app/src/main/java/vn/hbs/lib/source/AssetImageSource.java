@@ -0,0 +1,43 @@
+package vn.hbs.lib.source;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import vn.hbs.lib.cache.ImageCache;
+import vn.hbs.lib.util.ImageDecoder;
+
+/**
+ * Images bundled in the application assets, given as "asset:///images/photo.jpg". Assets are
+ * usually compressed inside the APK and have no usable file descriptor, so they are decoded
+ * from a stream opened once for the bounds and once for the pixels.
+ */
+public class AssetImageSource implements ImageSource {
+    private final AssetManager mAssetManager;
+
+    public AssetImageSource(Context context) {
+        this.mAssetManager = context.getApplicationContext().getAssets();
+    }
+
+    @Override
+    public Bitmap decode(String uri, int reqWidth, int reqHeight, ImageCache cache,
+                         int decodeFormat, BitmapFactory.Options options) throws IOException {
+        String path = Uri.parse(uri).getPath();
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        final String assetPath = path;
+        return ImageDecoder.decodeSampledBitmapFromStream(new ImageDecoder.StreamOpener() {
+            @Override
+            public InputStream open() throws IOException {
+                return mAssetManager.open(assetPath);
+            }
+        }, reqWidth, reqHeight, cache, decodeFormat, options);
+    }
+}
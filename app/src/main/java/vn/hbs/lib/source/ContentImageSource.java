@@ -0,0 +1,42 @@
+package vn.hbs.lib.source;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import vn.hbs.lib.cache.ImageCache;
+import vn.hbs.lib.util.ImageDecoder;
+
+/**
+ * Images from a content provider, e.g. "content://media/external/images/media/42" from the
+ * gallery. The file descriptor is opened once for both the bounds and the pixels.
+ */
+public class ContentImageSource implements ImageSource {
+    private final ContentResolver mContentResolver;
+
+    public ContentImageSource(Context context) {
+        this.mContentResolver = context.getApplicationContext().getContentResolver();
+    }
+
+    @Override
+    public Bitmap decode(String uri, int reqWidth, int reqHeight, ImageCache cache,
+                         int decodeFormat, BitmapFactory.Options options) throws IOException {
+        final ParcelFileDescriptor descriptor =
+                mContentResolver.openFileDescriptor(Uri.parse(uri), "r");
+        if (descriptor == null) {
+            throw new FileNotFoundException("No content for " + uri);
+        }
+        try {
+            return ImageDecoder.decodeSampledBitmapFromDescriptor(descriptor.getFileDescriptor(),
+                    reqWidth, reqHeight, cache, decodeFormat, null, options);
+        } finally {
+            descriptor.close();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package vn.hbs.lib.source;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import vn.hbs.lib.cache.ImageCache;
+import vn.hbs.lib.util.ImageDecoder;
+
+/**
+ * Images on the file system, given as "file:///path/to/image.jpg" or as an absolute path.
+ */
+public class FileImageSource implements ImageSource {
+
+    @Override
+    public Bitmap decode(String uri, int reqWidth, int reqHeight, ImageCache cache,
+                         int decodeFormat, BitmapFactory.Options options) throws IOException {
+        final String path = uri.startsWith("/") ? uri : Uri.parse(uri).getPath();
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(path);
+            return ImageDecoder.decodeSampledBitmapFromDescriptor(inputStream.getFD(),
+                    reqWidth, reqHeight, cache, decodeFormat, null, options);
+        } finally {
+            if (inputStream != null) {
+                inputStream.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package vn.hbs.lib.source;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+
+import vn.hbs.lib.cache.ImageCache;
+
+/**
+ * A source of local images, registered in {@link vn.hbs.lib.http.ImageFetcher} for a URI scheme.
+ * Local images are decoded straight from the device, they go through the memory cache and the
+ * fetcher's scheduling and deduplication but never through the disk cache or the network.
+ * Remote http(s) urls are handled by the fetcher's own network pipeline.
+ */
+public interface ImageSource {
+
+    /**
+     * Decode the image sampled down to the requested size. Called on a worker thread.
+     *
+     * @param uri The uri given to the fetcher
+     * @param cache The image cache, for the reusable bitmaps and decode format. May be null.
+     * @param decodeFormat One of the ImageDecoder DECODE_FORMAT_* constants
+     * @param options Fresh decode options, the caller may cancel the decode through them
+     * @return The bitmap, or null if it could not be decoded
+     * @throws IOException If the image could not be opened
+     */
+    Bitmap decode(String uri, int reqWidth, int reqHeight, ImageCache cache, int decodeFormat,
+                  BitmapFactory.Options options) throws IOException;
+}
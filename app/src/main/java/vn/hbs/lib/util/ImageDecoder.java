@@ -7,8 +7,11 @@ import android.graphics.BitmapFactory;
 import android.os.Build;
 
 import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
 
 import vn.hbs.lib.cache.ImageCache;
+import vn.hbs.lib.debug.PipelineTrace;
 
 /**
  * Created by thanhbui on 2017/05/04.
@@ -16,13 +19,33 @@ import vn.hbs.lib.cache.ImageCache;
 
 public class ImageDecoder {
 
+    // Decode format policies, see ImageCacheParams#setDecodeFormat(int)
+    public static final int DECODE_FORMAT_ARGB_8888 = 0;
+    public static final int DECODE_FORMAT_PREFER_RGB_565 = 1;
+
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+    private static final String MIME_TYPE_PNG = "image/png";
+    private static final String MIME_TYPE_WEBP = "image/webp";
+
+    /**
+     * Opens an encoded image, once for each pass of a stream decode
+     */
+    public interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
     public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId, int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeSampledBitmapFromResource(res, resId, reqWidth, reqHeight, cache, getDecodeFormat(cache));
+    }
+
+    public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId, int reqWidth, int reqHeight, ImageCache cache, int decodeFormat) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeResource(res, resId, options);
 
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inPreferredConfig = getPreferredConfig(options, null, decodeFormat);
 
         // If we're running on Honeycomb or newer, try to use inBitmap
         if (VersionUtils.hasHoneycomb()) {
@@ -30,16 +53,26 @@ public class ImageDecoder {
         }
 
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeResource(res, resId, options);
+        PipelineTrace.beginSection(PipelineTrace.SECTION_DECODE);
+        try {
+            return BitmapFactory.decodeResource(res, resId, options);
+        } finally {
+            PipelineTrace.endSection();
+        }
     }
 
     public static Bitmap decodeSampledBitmapFromFile(String filename, int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeSampledBitmapFromFile(filename, reqWidth, reqHeight, cache, getDecodeFormat(cache));
+    }
+
+    public static Bitmap decodeSampledBitmapFromFile(String filename, int reqWidth, int reqHeight, ImageCache cache, int decodeFormat) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(filename, options);
 
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inPreferredConfig = getPreferredConfig(options, null, decodeFormat);
 
         // If we're running on Honeycomb or newer, try to use inBitmap
         if (VersionUtils.hasHoneycomb()) {
@@ -47,45 +80,261 @@ public class ImageDecoder {
         }
 
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(filename, options);
+        PipelineTrace.beginSection(PipelineTrace.SECTION_DECODE);
+        try {
+            return BitmapFactory.decodeFile(filename, options);
+        } finally {
+            PipelineTrace.endSection();
+        }
     }
 
     public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, int reqWidth, int reqHeight, ImageCache cache) {
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        return decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth, reqHeight, cache, getDecodeFormat(cache));
+    }
+
+    public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, int reqWidth, int reqHeight, ImageCache cache, int decodeFormat) {
+        return decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth, reqHeight, cache, decodeFormat, null, new BitmapFactory.Options());
+    }
+
+    /**
+     * Decode from a file descriptor. When the image info is known (e.g. from the disk cache
+     * index) the bounds pass is skipped and the file is read only once, into a bitmap of the
+     * reusable set when one fits the stored bounds and no view shows it any more.
+     *
+     * @param options Fresh options owned by the caller, which may call
+     *                {@link BitmapFactory.Options#requestCancelDecode()} on them from another
+     *                thread to abort the decode. Returns null if the decode was cancelled.
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, int reqWidth, int reqHeight, ImageCache cache, int decodeFormat, ImageInfo info, BitmapFactory.Options options) {
+        if (info != null) {
+            info.applyTo(options);
+        } else {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        }
 
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        if (info != null) {
+            options.inPreferredConfig = getPreferredConfig(!info.hasAlpha(), decodeFormat);
+        } else {
+            options.inPreferredConfig = getPreferredConfig(options, null, decodeFormat);
+        }
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
 
         // If we're running on Honeycomb or newer, try to use inBitmap
         if (VersionUtils.hasHoneycomb()) {
-            //addInBitmapOptions(options, cache);
+            addInBitmapOptions(options, cache);
         }
 
-        return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        PipelineTrace.beginSection(PipelineTrace.SECTION_DECODE);
+        try {
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        } finally {
+            PipelineTrace.endSection();
+        }
     }
 
     public static Bitmap decodeSampledBitmapFromByteArray(byte[] byteArray, int reqWidth, int reqHeight, ImageCache cache) {
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length, options);
+        return decodeSampledBitmapFromByteArray(byteArray, reqWidth, reqHeight, cache, getDecodeFormat(cache));
+    }
+
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] byteArray, int reqWidth, int reqHeight, ImageCache cache, int decodeFormat) {
+        return decodeSampledBitmapFromByteArray(byteArray, reqWidth, reqHeight, cache, decodeFormat, new BitmapFactory.Options());
+    }
+
+    /**
+     * Decode from an encoded image held in memory.
+     *
+     * @param options Fresh options owned by the caller, which may call
+     *                {@link BitmapFactory.Options#requestCancelDecode()} on them from another
+     *                thread to abort the decode. Returns null if the decode was cancelled.
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] byteArray, int reqWidth, int reqHeight, ImageCache cache, int decodeFormat, BitmapFactory.Options options) {
+        return decodeSampledBitmapFromByteArray(byteArray, reqWidth, reqHeight, cache, decodeFormat, null, options);
+    }
+
+    /**
+     * Decode from an encoded image held in memory. When the image info is known the bounds
+     * pass is skipped.
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] byteArray, int reqWidth, int reqHeight, ImageCache cache, int decodeFormat, ImageInfo info, BitmapFactory.Options options) {
+        if (info != null) {
+            info.applyTo(options);
+        } else {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length, options);
+        }
 
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        if (info != null) {
+            options.inPreferredConfig = getPreferredConfig(!info.hasAlpha(), decodeFormat);
+        } else {
+            options.inPreferredConfig = getPreferredConfig(options, byteArray, decodeFormat);
+        }
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
 
         // If we're running on Honeycomb or newer, try to use inBitmap
         if (VersionUtils.hasHoneycomb()) {
-            //addInBitmapOptions(options, cache);
+            addInBitmapOptions(options, cache);
         }
 
-        return BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length, options);
+        PipelineTrace.beginSection(PipelineTrace.SECTION_DECODE);
+        try {
+            return BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length, options);
+        } finally {
+            PipelineTrace.endSection();
+        }
+    }
+
+    /**
+     * Decode from a stream that can't be read twice, e.g. an asset compressed in the APK. It is
+     * opened once for the bounds and once for the pixels, which go into a bitmap of the reusable
+     * set when one fits.
+     *
+     * @param options Fresh options owned by the caller, which may call
+     *                {@link BitmapFactory.Options#requestCancelDecode()} on them from another
+     *                thread to abort the decode. Returns null if the decode was cancelled.
+     */
+    public static Bitmap decodeSampledBitmapFromStream(StreamOpener opener, int reqWidth, int reqHeight, ImageCache cache, int decodeFormat, BitmapFactory.Options options) throws IOException {
+        InputStream inputStream = opener.open();
+        try {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            inputStream.close();
+        }
+
+        // Calculate inSampleSize
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inPreferredConfig = getPreferredConfig(options, null, decodeFormat);
+
+        // Decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+
+        // If we're running on Honeycomb or newer, try to use inBitmap
+        if (VersionUtils.hasHoneycomb()) {
+            addInBitmapOptions(options, cache);
+        }
+
+        inputStream = opener.open();
+        PipelineTrace.beginSection(PipelineTrace.SECTION_DECODE);
+        try {
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            PipelineTrace.endSection();
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Decode from encoded bytes held in a slab buffer, read through a stream so they are not
+     * copied to the heap. When the image info is known the bounds pass is skipped. Either way
+     * the bounds pick a bitmap of the reusable set to decode into, among the ones no view
+     * shows any more.
+     */
+    public static Bitmap decodeSampledBitmapFromBuffer(SlabBuffer buffer, int reqWidth, int reqHeight, ImageCache cache, int decodeFormat, ImageInfo info, BitmapFactory.Options options) {
+        if (info == null) {
+            info = ImageInfo.fromBuffer(buffer);
+            if (info == null) {
+                return null;
+            }
+        }
+        info.applyTo(options);
+
+        // Calculate inSampleSize
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inPreferredConfig = getPreferredConfig(!info.hasAlpha(), decodeFormat);
+
+        // Decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+
+        // If we're running on Honeycomb or newer, try to use inBitmap
+        if (VersionUtils.hasHoneycomb()) {
+            addInBitmapOptions(options, cache);
+        }
+
+        PipelineTrace.beginSection(PipelineTrace.SECTION_DECODE);
+        try {
+            return BitmapFactory.decodeStream(buffer.newInputStream(), null, options);
+        } finally {
+            PipelineTrace.endSection();
+        }
+    }
+
+    /**
+     * Decode a coarse preview from a file descriptor, sampled sampleFactor times more than the
+     * full decode would be. Preview bitmaps are never taken from or given to the reusable set.
+     */
+    public static Bitmap decodePreviewFromDescriptor(FileDescriptor fileDescriptor, int reqWidth, int reqHeight, ImageInfo info, int sampleFactor) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        info.applyTo(options);
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight) * sampleFactor;
+        options.inPreferredConfig = info.hasAlpha() ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        PipelineTrace.beginSection(PipelineTrace.SECTION_DECODE);
+        try {
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        } finally {
+            PipelineTrace.endSection();
+        }
+    }
+
+    /**
+     * Decode a coarse preview from the first length bytes of an encoded image, e.g. the scans
+     * of a progressive JPEG received so far. Returns null if nothing could be decoded yet.
+     */
+    public static Bitmap decodePreviewFromByteArray(byte[] byteArray, int length, int reqWidth, int reqHeight, int sampleFactor) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(byteArray, 0, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight) * sampleFactor;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inJustDecodeBounds = false;
+        PipelineTrace.beginSection(PipelineTrace.SECTION_DECODE);
+        try {
+            return BitmapFactory.decodeByteArray(byteArray, 0, length, options);
+        } finally {
+            PipelineTrace.endSection();
+        }
+    }
+
+    /**
+     * Returns true if the bytes start a progressive JPEG, i.e. the first start-of-frame marker
+     * is SOF2. Only the first length bytes are looked at.
+     */
+    public static boolean isProgressiveJpeg(byte[] data, int length) {
+        if (length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8) {
+            return false;
+        }
+
+        // Walk the marker segments after SOI until the first frame header
+        int offset = 2;
+        while (offset + 4 <= length) {
+            if ((data[offset] & 0xFF) != 0xFF) {
+                return false;
+            }
+            int marker = data[offset + 1] & 0xFF;
+            if (marker == 0xC2) {
+                return true;
+            }
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+                    && marker != 0xCC) {
+                // Any other SOFn: baseline, extended, lossless...
+                return false;
+            }
+            int segmentLength = ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+            offset += 2 + segmentLength;
+        }
+        return false;
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -103,6 +352,116 @@ public class ImageDecoder {
         }
     }
 
+    /**
+     * Pick the bitmap config to decode into. With {@link #DECODE_FORMAT_PREFER_RGB_565} opaque
+     * images are decoded to RGB_565 which halves the pixel memory, anything that may carry an
+     * alpha channel stays ARGB_8888.
+     *
+     * @param options BitmapFactory.Options with out* values populated
+     * @param header The encoded bytes if available, used to sniff PNG/WebP alpha. May be null.
+     */
+    public static Bitmap.Config getPreferredConfig(BitmapFactory.Options options, byte[] header, int decodeFormat) {
+        return getPreferredConfig(isOpaque(options.outMimeType, header), decodeFormat);
+    }
+
+    private static Bitmap.Config getPreferredConfig(boolean opaque, int decodeFormat) {
+        if (decodeFormat == DECODE_FORMAT_PREFER_RGB_565 && opaque) {
+            return Bitmap.Config.RGB_565;
+        }
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    private static int getDecodeFormat(ImageCache cache) {
+        if (cache != null) {
+            return cache.getImageCacheParams().getDecodeFormat();
+        }
+        return DECODE_FORMAT_ARGB_8888;
+    }
+
+    /**
+     * Returns true if the encoded image is known to have no alpha channel. JPEG never has alpha,
+     * PNG and WebP are checked from their headers when the bytes are available, anything else
+     * is treated as translucent.
+     */
+    static boolean isOpaque(String mimeType, byte[] header) {
+        if (MIME_TYPE_JPEG.equals(mimeType)) {
+            return true;
+        }
+        if (header == null) {
+            return false;
+        }
+        if (MIME_TYPE_PNG.equals(mimeType)) {
+            return isOpaquePng(header);
+        }
+        if (MIME_TYPE_WEBP.equals(mimeType)) {
+            return isOpaqueWebp(header);
+        }
+        return false;
+    }
+
+    private static boolean isOpaquePng(byte[] data) {
+        // IHDR is always the first chunk, its color type is at offset 25. Types 4 and 6 carry
+        // an alpha channel, the others may still be made translucent by a tRNS chunk.
+        if (data.length < 33) {
+            return false;
+        }
+        int colorType = data[25] & 0xFF;
+        if (colorType == 4 || colorType == 6) {
+            return false;
+        }
+
+        // Walk the chunks up to the image data looking for tRNS
+        int offset = 8;
+        while (offset + 8 <= data.length) {
+            int length = readInt(data, offset);
+            if (length < 0) {
+                return false;
+            }
+            if (matches(data, offset + 4, "tRNS")) {
+                return false;
+            }
+            if (matches(data, offset + 4, "IDAT")) {
+                return true;
+            }
+            offset += 12 + length;
+        }
+        return false;
+    }
+
+    private static boolean isOpaqueWebp(byte[] data) {
+        // RIFF header followed by the first chunk: VP8 (lossy) has no alpha, VP8L may have,
+        // VP8X flags alpha in bit 4 of its first byte.
+        if (data.length < 21 || !matches(data, 0, "RIFF") || !matches(data, 8, "WEBP")) {
+            return false;
+        }
+        if (matches(data, 12, "VP8 ")) {
+            return true;
+        }
+        if (matches(data, 12, "VP8X")) {
+            return (data[20] & 0x10) == 0;
+        }
+        return false;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    private static boolean matches(byte[] data, int offset, String tag) {
+        if (offset + tag.length() > data.length) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (data[offset + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
         final int height = options.outHeight;
         final int width = options.outWidth;
@@ -0,0 +1,139 @@
+package vn.hbs.lib.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Dimensions, MIME type and alpha flag of an encoded image. This is stored with each disk
+ * cache entry so a disk hit can be decoded in a single pass, without the inJustDecodeBounds
+ * pass, and so layouts can reserve the aspect ratio before the image is loaded.
+ */
+public class ImageInfo {
+    private static final char SEPARATOR = ',';
+    // Enough of the file to find the alpha flags of PNG and WebP
+    private static final int HEADER_SIZE = 16 * 1024;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final String mMimeType;
+    private final boolean mHasAlpha;
+
+    public ImageInfo(int width, int height, String mimeType, boolean hasAlpha) {
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mMimeType = mimeType;
+        this.mHasAlpha = hasAlpha;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Return the MIME type reported by the decoder, or null if unknown
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public boolean hasAlpha() {
+        return mHasAlpha;
+    }
+
+    /**
+     * Read the bounds of an encoded image held in memory. Returns null if it can't be decoded.
+     */
+    public static ImageInfo fromByteArray(byte[] byteArray) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        return new ImageInfo(options.outWidth, options.outHeight, options.outMimeType,
+                !ImageDecoder.isOpaque(options.outMimeType, byteArray));
+    }
+
+    /**
+     * Read the bounds of an encoded image held in a slab buffer. Only the header is copied to
+     * the heap, for the alpha sniffing. Returns null if it can't be decoded.
+     */
+    public static ImageInfo fromBuffer(SlabBuffer buffer) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(buffer.newInputStream(), null, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        return new ImageInfo(options.outWidth, options.outHeight, options.outMimeType,
+                !ImageDecoder.isOpaque(options.outMimeType, buffer.toByteArray(HEADER_SIZE)));
+    }
+
+    /**
+     * Describe a bitmap that is about to be compressed with the given format.
+     */
+    public static ImageInfo fromBitmap(Bitmap bitmap, Bitmap.CompressFormat format) {
+        return new ImageInfo(bitmap.getWidth(), bitmap.getHeight(), fromBitmapFormat(format),
+                format != Bitmap.CompressFormat.JPEG && bitmap.hasAlpha());
+    }
+
+    /**
+     * Return the MIME type produced by a compress format
+     */
+    public static String fromBitmapFormat(Bitmap.CompressFormat format) {
+        switch (format) {
+            case PNG:
+                return "image/png";
+            case WEBP:
+                return "image/webp";
+            default:
+                return "image/jpeg";
+        }
+    }
+
+    /**
+     * Populate the out* fields of the options as a bounds decode would.
+     */
+    public void applyTo(BitmapFactory.Options options) {
+        options.outWidth = mWidth;
+        options.outHeight = mHeight;
+        options.outMimeType = mMimeType;
+    }
+
+    /**
+     * Encode to a compact string without spaces, suitable for the disk cache journal.
+     */
+    public String encode() {
+        return new StringBuilder()
+                .append(mWidth).append(SEPARATOR)
+                .append(mHeight).append(SEPARATOR)
+                .append(mMimeType != null ? mMimeType : "").append(SEPARATOR)
+                .append(mHasAlpha ? 1 : 0)
+                .toString();
+    }
+
+    /**
+     * Parse a string produced by {@link #encode()}. Returns null if it is malformed.
+     */
+    public static ImageInfo decode(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        String[] parts = encoded.split(String.valueOf(SEPARATOR), -1);
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            int width = Integer.parseInt(parts[0]);
+            int height = Integer.parseInt(parts[1]);
+            String mimeType = parts[2].length() > 0 ? parts[2] : null;
+            return new ImageInfo(width, height, mimeType, "1".equals(parts[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package vn.hbs.lib.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Allocator of off-heap buffers for encoded image bytes, so that downloads and the encoded
+ * bytes cache don't churn the Java heap and trigger GC pauses while scrolling.
+ * <p>
+ * Memory is reserved in slabs of 1MB of direct memory, each cut into slots of a single size
+ * class (16KB, 64KB, 256KB or 1MB). A request gets a slot of the smallest class that fits
+ * and the slot goes back to its free list when the {@link SlabBuffer} holding it is released,
+ * slabs are never returned to the system. Requests larger than the largest class, or made
+ * while the slabs already use the whole budget, get a plain heap buffer instead.
+ */
+public class SlabAllocator {
+    private static final int KB = 1024;
+    private static final int[] SIZE_CLASSES = {16 * KB, 64 * KB, 256 * KB, 1024 * KB};
+    private static final int SLAB_SIZE = 1024 * KB;
+
+    // Default budget of direct memory in bytes
+    private static final int DEFAULT_MAX_SIZE = 16 * 1024 * KB; // 16MB
+
+    private static SlabAllocator sInstance;
+
+    private final int mMaxSize;
+    private int mAllocatedSize = 0;
+    private final ArrayList<ArrayDeque<ByteBuffer>> mFreeSlots =
+            new ArrayList<ArrayDeque<ByteBuffer>>(SIZE_CLASSES.length);
+
+    /**
+     * Return the process wide allocator shared by the fetchers and the caches, so buffers can
+     * be handed from one to the other.
+     */
+    public static synchronized SlabAllocator getInstance() {
+        if (sInstance == null) {
+            sInstance = new SlabAllocator(DEFAULT_MAX_SIZE);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param maxSize The budget of direct memory in bytes
+     */
+    public SlabAllocator(int maxSize) {
+        this.mMaxSize = maxSize;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            mFreeSlots.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Allocate an empty buffer that can hold at least capacity bytes without growing. It has a
+     * reference count of one and must be released once done with.
+     */
+    public SlabBuffer allocate(int capacity) {
+        return new SlabBuffer(this, acquireSlot(Math.max(capacity, 1)));
+    }
+
+    /**
+     * Return the direct memory reserved by the slabs in bytes
+     */
+    public synchronized int getAllocatedSize() {
+        return mAllocatedSize;
+    }
+
+    synchronized ByteBuffer acquireSlot(int capacity) {
+        final int sizeClass = getSizeClass(capacity);
+        if (sizeClass < 0) {
+            return ByteBuffer.allocate(capacity);
+        }
+
+        final ArrayDeque<ByteBuffer> freeSlots = mFreeSlots.get(sizeClass);
+        if (freeSlots.isEmpty() && mAllocatedSize + SLAB_SIZE <= mMaxSize) {
+            final int slotSize = SIZE_CLASSES[sizeClass];
+            final ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            for (int offset = 0; offset + slotSize <= SLAB_SIZE; offset += slotSize) {
+                slab.limit(offset + slotSize);
+                slab.position(offset);
+                freeSlots.add(slab.slice());
+            }
+            mAllocatedSize += SLAB_SIZE;
+        }
+
+        final ByteBuffer slot = freeSlots.poll();
+        if (slot == null) {
+            // Over budget, fall back to the heap
+            return ByteBuffer.allocate(SIZE_CLASSES[sizeClass]);
+        }
+        slot.clear();
+        return slot;
+    }
+
+    synchronized void releaseSlot(ByteBuffer slot) {
+        if (!slot.isDirect()) {
+            // Heap fallback, left to the garbage collector
+            return;
+        }
+        final int sizeClass = getSizeClass(slot.capacity());
+        if (sizeClass >= 0 && SIZE_CLASSES[sizeClass] == slot.capacity()) {
+            mFreeSlots.get(sizeClass).add(slot);
+        }
+    }
+
+    private static int getSizeClass(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,214 @@
+package vn.hbs.lib.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.InvalidMarkException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted handle on a slot of a {@link SlabAllocator}, holding encoded image
+ * bytes. The owner fills it with {@link #write(byte[], int, int)} or
+ * {@link #readFrom(ReadableByteChannel, int)}, growing into a larger slot when needed, then
+ * it is read only and may be shared: every holder calls {@link #retain()} and
+ * {@link #release()}, and the slot is given back to the allocator by the last release.
+ * Decoders read it through {@link #newInputStream()}, each stream has its own position.
+ */
+public class SlabBuffer {
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private final SlabAllocator mAllocator;
+    private ByteBuffer mSlot;
+    private int mSize = 0;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    SlabBuffer(SlabAllocator allocator, ByteBuffer slot) {
+        this.mAllocator = allocator;
+        this.mSlot = slot;
+    }
+
+    /**
+     * Return the number of bytes written
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Append bytes, only before the buffer is shared
+     */
+    public void write(byte[] src, int offset, int length) {
+        ensureCapacity(mSize + length);
+        final ByteBuffer target = mSlot.duplicate();
+        target.position(mSize);
+        target.put(src, offset, length);
+        mSize += length;
+    }
+
+    /**
+     * Return a stream appending to this buffer, only before the buffer is shared
+     */
+    public OutputStream newOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int oneByte) {
+                SlabBuffer.this.write(new byte[] {(byte) oneByte}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+                SlabBuffer.this.write(buffer, offset, length);
+            }
+        };
+    }
+
+    /**
+     * Append up to length bytes read from a channel, only before the buffer is shared.
+     *
+     * @return true if all of them could be read
+     */
+    public boolean readFrom(ReadableByteChannel channel, int length) throws IOException {
+        ensureCapacity(mSize + length);
+        final ByteBuffer target = mSlot.duplicate();
+        target.limit(mSize + length);
+        target.position(mSize);
+        while (target.hasRemaining()) {
+            if (channel.read(target) < 0) {
+                break;
+            }
+        }
+        mSize = target.position();
+        return !target.hasRemaining();
+    }
+
+    /**
+     * Copy the content to a stream, a chunk at a time
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        final ByteBuffer source = newView();
+        final byte[] chunk = new byte[Math.min(COPY_BUFFER_SIZE, Math.max(mSize, 1))];
+        while (source.hasRemaining()) {
+            final int count = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, count);
+            out.write(chunk, 0, count);
+        }
+    }
+
+    /**
+     * Copy the first length bytes to the heap, e.g. to sniff an image header
+     */
+    public byte[] toByteArray(int length) {
+        final byte[] bytes = new byte[Math.min(length, mSize)];
+        newView().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Return a read only view of the content
+     */
+    public ByteBuffer asReadOnlyBuffer() {
+        return newView().asReadOnlyBuffer();
+    }
+
+    /**
+     * Return a stream over the content, independent from the other streams
+     */
+    public InputStream newInputStream() {
+        return new ByteBufferInputStream(newView());
+    }
+
+    public SlabBuffer retain() {
+        mRefCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drop a reference, the slot goes back to the allocator with the last one
+     */
+    public void release() {
+        final int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            mAllocator.releaseSlot(mSlot);
+            mSlot = null;
+        } else if (refCount < 0) {
+            throw new IllegalStateException("SlabBuffer released too many times");
+        }
+    }
+
+    private ByteBuffer newView() {
+        final ByteBuffer view = mSlot.duplicate();
+        view.limit(mSize);
+        view.position(0);
+        return view;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mSlot.capacity()) {
+            return;
+        }
+        final ByteBuffer larger = mAllocator.acquireSlot(Math.max(capacity, mSlot.capacity() * 2));
+        larger.put(newView());
+        larger.clear();
+        mAllocator.releaseSlot(mSlot);
+        mSlot = larger;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, mBuffer.remaining());
+            mBuffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            final int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mBuffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            try {
+                mBuffer.reset();
+            } catch (InvalidMarkException e) {
+                throw new IOException("Mark not set");
+            }
+        }
+    }
+}
@@ -42,6 +42,10 @@ public class VersionUtils {
         return Build.VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB_MR1;
     }
 
+    public static boolean hasJellyBeanMR2() {
+        return Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
     public static boolean hasKitKat() {
         return Build.VERSION.SDK_INT >= VERSION_CODES.KITKAT;
     }
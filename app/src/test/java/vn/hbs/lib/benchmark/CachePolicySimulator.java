@@ -0,0 +1,507 @@
+package vn.hbs.lib.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import vn.hbs.lib.cache.CacheEngine;
+import vn.hbs.lib.cache.DiskLruCache;
+import vn.hbs.lib.cache.EvictionPolicy;
+import vn.hbs.lib.cache.EvictionTrimmer;
+import vn.hbs.lib.cache.GdsfEvictionPolicy;
+import vn.hbs.lib.cache.LruEvictionPolicy;
+
+/**
+ * Offline replay of an image access trace through the cache tiers at many capacities, to
+ * size the memory and disk caches from data rather than from defaults.
+ * <p>
+ * The trace has one request per line, fields separated by spaces, tabs or commas:
+ * <pre>
+ *     &lt;url&gt; &lt;bytes&gt; &lt;target width&gt;x&lt;target height&gt; &lt;timestamp ms&gt;
+ * </pre>
+ * Empty lines and lines starting with # are skipped, requests are replayed in timestamp
+ * order. Without a trace, a synthetic one is generated with Zipf distributed popularity.
+ * <p>
+ * Two sweeps are printed as CSV, one line per policy and capacity:
+ * <ul>
+ *     <li>memory: the bitmap tier alone over every request. An entry takes
+ *     width * height * bytes-per-pixel, and lru is the memory tier of {@link CacheEngine}
+ *     sized in kilobytes like ImageCache does. Byte hit ratios are in decoded bytes.</li>
+ *     <li>disk: the disk tier behind a memory lru of --front-memory, so it only sees that
+ *     tier's misses. The tier keeps the accounting of {@link DiskLruCache} without writing
+ *     files, asks the real eviction policies for victims and trims down to
+ *     {@link DiskLruCache#EVICTION_LOW_WATERMARK} with the {@link EvictionTrimmer} of the
+ *     cache. Byte hit ratios are in downloaded bytes,
+ *     and the overall columns count the hits of both tiers.</li>
+ * </ul>
+ * Policies are lru, gdsf (object hit ratio) and gdsf-bytes (byte hit ratio), see
+ * {@link GdsfEvictionPolicy}. Traces carry no download time, so every entry has the same
+ * cost. The encoded bytes tier and expiry are not simulated.
+ * <p>
+ * Run the main method from the IDE or the test classpath. Options, with their defaults:
+ * <pre>
+ *     --trace= --memory=1m,2m,4m,8m,16m,32m,64m,128m --disk=5m,10m,20m,40m,80m,160m,320m
+ *     --front-memory=5m --policies=lru,gdsf,gdsf-bytes --bytes-per-pixel=4 --heap=0
+ *     --requests=100000 --urls=10000 --zipf=0.8 --size=61440 --seed=42
+ * </pre>
+ * Capacities take a k, m or g suffix. With --heap, the maximum heap of the target device,
+ * the memory sweep also prints each capacity as a fraction of it, the unit of
+ * setMemCacheSizePercent. The last four options shape the synthetic trace.
+ */
+public class CachePolicySimulator {
+    private static final String POLICY_LRU = "lru";
+    private static final String POLICY_GDSF = "gdsf";
+    private static final String POLICY_GDSF_BYTES = "gdsf-bytes";
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Options mOptions;
+    private final List<Request> mTrace;
+
+    public static void main(String[] args) throws IOException {
+        final Options options = Options.parse(args);
+        final List<Request> trace = options.trace != null
+                ? readTrace(options.trace) : newSyntheticTrace(options);
+        new CachePolicySimulator(options, trace).run();
+    }
+
+    private CachePolicySimulator(Options options, List<Request> trace) {
+        this.mOptions = options;
+        this.mTrace = trace;
+    }
+
+    private void run() {
+        printSummary();
+
+        System.out.println("tier,policy,capacity,heap_fraction,requests,hits,hit_ratio,"
+                + "byte_hit_ratio,overall_hit_ratio,overall_byte_hit_ratio");
+        for (String policy : mOptions.policies) {
+            for (long capacity : mOptions.memory) {
+                final Tier memory = newMemoryTier(policy, capacity);
+                final Result result = new Result("memory", policy, capacity);
+                for (Request request : mTrace) {
+                    final long decodedSize = request.getDecodedSize(mOptions.bytesPerPixel);
+                    final boolean hit = memory.access(request.url, decodedSize);
+                    result.record(hit, decodedSize);
+                }
+                System.out.println(result.toCsv(mOptions.heap));
+            }
+        }
+
+        for (String policy : mOptions.policies) {
+            for (long capacity : mOptions.disk) {
+                final Tier front = newMemoryTier(POLICY_LRU, mOptions.frontMemory);
+                final Tier disk = new PolicyTier(newEvictionPolicy(policy), capacity,
+                        DiskLruCache.EVICTION_LOW_WATERMARK);
+                final Result result = new Result("disk", policy, capacity);
+                for (Request request : mTrace) {
+                    if (front.access(request.url, request.getDecodedSize(mOptions.bytesPerPixel))) {
+                        result.recordFrontHit(request.size);
+                        continue;
+                    }
+                    final boolean hit = disk.access(CacheEngine.hashKeyForDisk(request.url),
+                            request.size);
+                    result.record(hit, request.size);
+                }
+                System.out.println(result.toCsv(0));
+            }
+        }
+    }
+
+    /**
+     * Requests, distinct images and their bytes, the ceiling any capacity can reach
+     */
+    private void printSummary() {
+        final Set<String> seen = new HashSet<String>();
+        long bytes = 0;
+        long distinctBytes = 0;
+        long decodedDistinctBytes = 0;
+        for (Request request : mTrace) {
+            bytes += request.size;
+            if (seen.add(request.url)) {
+                distinctBytes += request.size;
+                decodedDistinctBytes += request.getDecodedSize(mOptions.bytesPerPixel);
+            }
+        }
+        System.out.println("# " + mOptions);
+        System.out.println(String.format(Locale.US,
+                "# requests=%d urls=%d bytes=%d distinct_bytes=%d decoded_distinct_bytes=%d"
+                        + " max_hit_ratio=%.4f max_byte_hit_ratio=%.4f",
+                mTrace.size(), seen.size(), bytes, distinctBytes, decodedDistinctBytes,
+                1.0 - (double) seen.size() / Math.max(mTrace.size(), 1),
+                1.0 - (double) distinctBytes / Math.max(bytes, 1)));
+    }
+
+    private Tier newMemoryTier(String policy, long capacity) {
+        if (POLICY_LRU.equals(policy)) {
+            return new EngineMemoryTier(capacity);
+        }
+        // The memory tier trims to its size exactly, like LruCache
+        return new PolicyTier(newEvictionPolicy(policy), capacity, 1.0f);
+    }
+
+    private static EvictionPolicy newEvictionPolicy(String policy) {
+        if (POLICY_LRU.equals(policy)) {
+            return new LruEvictionPolicy();
+        } else if (POLICY_GDSF.equals(policy)) {
+            return new GdsfEvictionPolicy(GdsfEvictionPolicy.OBJECT_HIT_RATIO);
+        } else if (POLICY_GDSF_BYTES.equals(policy)) {
+            return new GdsfEvictionPolicy(GdsfEvictionPolicy.BYTE_HIT_RATIO);
+        }
+        throw new IllegalArgumentException("unknown policy: " + policy);
+    }
+
+    private static List<Request> readTrace(String path) throws IOException {
+        final InputStream in = "-".equals(path) ? System.in : new FileInputStream(path);
+        final List<Request> trace = new ArrayList<Request>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("[,\\s]+");
+                if (fields.length < 4) {
+                    throw new IOException("line " + lineNumber + ": expected url, size, "
+                            + "target size and timestamp");
+                }
+                try {
+                    final String[] target = fields[2].split("x");
+                    trace.add(new Request(fields[0], Long.parseLong(fields[1]),
+                            Integer.parseInt(target[0]), Integer.parseInt(target[1]),
+                            Long.parseLong(fields[3])));
+                } catch (RuntimeException e) {
+                    throw new IOException("line " + lineNumber + ": " + e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        // Stable, so requests logged in the same millisecond keep their order
+        Collections.sort(trace, new Comparator<Request>() {
+            @Override
+            public int compare(Request lhs, Request rhs) {
+                return lhs.timestamp < rhs.timestamp
+                        ? -1 : (lhs.timestamp == rhs.timestamp ? 0 : 1);
+            }
+        });
+        return trace;
+    }
+
+    /**
+     * Requests over a corpus with Zipf distributed popularity, image sizes spread from a
+     * third to twice the mean and thumbnails or full width targets
+     */
+    private static List<Request> newSyntheticTrace(Options options) {
+        final Random random = new Random(options.seed);
+        final long[] sizes = new long[options.urls];
+        final int[] widths = new int[options.urls];
+        for (int i = 0; i < options.urls; i++) {
+            sizes[i] = Math.max(16, (long) (options.size * (0.33 + random.nextDouble() * 1.67)));
+            widths[i] = random.nextInt(4) == 0 ? 1080 : 270;
+        }
+
+        final double[] cumulative = new double[options.urls];
+        double sum = 0;
+        for (int i = 0; i < options.urls; i++) {
+            sum += 1.0 / Math.pow(i + 1, options.zipf);
+            cumulative[i] = sum;
+        }
+
+        final List<Request> trace = new ArrayList<Request>(options.requests);
+        long timestamp = 0;
+        for (int r = 0; r < options.requests; r++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            index = index >= 0 ? index : Math.min(-index - 1, options.urls - 1);
+            timestamp += random.nextInt(500);
+            trace.add(new Request("http://example.com/images/" + index + ".jpg", sizes[index],
+                    widths[index], widths[index] * 3 / 4, timestamp));
+        }
+        return trace;
+    }
+
+    private static class Request {
+        final String url;
+        final long size;
+        final int targetWidth;
+        final int targetHeight;
+        final long timestamp;
+
+        Request(String url, long size, int targetWidth, int targetHeight, long timestamp) {
+            this.url = url;
+            this.size = size;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.timestamp = timestamp;
+        }
+
+        long getDecodedSize(int bytesPerPixel) {
+            return (long) targetWidth * targetHeight * bytesPerPixel;
+        }
+    }
+
+    /**
+     * A simulated cache tier
+     */
+    private interface Tier {
+        /**
+         * Look the key up, and add it on a miss
+         *
+         * @return true on a hit
+         */
+        boolean access(String key, long size);
+    }
+
+    /**
+     * The memory tier of a {@link CacheEngine}, holding sizes in place of bitmaps
+     */
+    private static class EngineMemoryTier implements Tier {
+        private final CacheEngine<Long> mEngine;
+
+        EngineMemoryTier(long capacity) {
+            final CacheEngine.Params<Long> params =
+                    new CacheEngine.Params<Long>(new CacheEngine.Sizer<Long>() {
+                        @Override
+                        public int sizeOf(String key, Long value) {
+                            final int size = (int) (value / 1024);
+                            return size == 0 ? 1 : size;
+                        }
+                    });
+            params.setMemoryCacheSize((int) Math.min(capacity / 1024, Integer.MAX_VALUE));
+            mEngine = new CacheEngine<Long>(params, DIRECT_EXECUTOR);
+        }
+
+        @Override
+        public boolean access(String key, long size) {
+            if (mEngine.getFromMemory(key) != null) {
+                return true;
+            }
+            mEngine.putInMemory(key, size);
+            return false;
+        }
+    }
+
+    /**
+     * The size accounting of {@link DiskLruCache} over an {@link EvictionPolicy}, trimmed by
+     * the same {@link EvictionTrimmer}
+     */
+    private static class PolicyTier implements Tier, EvictionTrimmer.Entries {
+        private final LinkedHashMap<String, Long> mEntries =
+                new LinkedHashMap<String, Long>(0, 0.75f, true);
+        private final EvictionPolicy mPolicy;
+        private final long mMaxSize;
+        private final float mLowWatermark;
+        private long mSize;
+
+        PolicyTier(EvictionPolicy policy, long maxSize, float lowWatermark) {
+            this.mPolicy = policy;
+            this.mMaxSize = maxSize;
+            this.mLowWatermark = lowWatermark;
+        }
+
+        @Override
+        public boolean access(String key, long size) {
+            if (mEntries.get(key) != null) {
+                mPolicy.onEntryAccessed(key);
+                return true;
+            }
+            // A new entry starts without an access count, as an entry evicted before
+            mEntries.put(key, size);
+            mSize += size;
+            mPolicy.onEntryAdded(key, size, 0, 0);
+            EvictionTrimmer.trimToSize(this, mPolicy, mMaxSize, mLowWatermark);
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return mSize;
+        }
+
+        @Override
+        public Iterator<String> lruKeys() {
+            return mEntries.keySet().iterator();
+        }
+
+        @Override
+        public int evict(String key) {
+            final Long size = mEntries.remove(key);
+            if (size == null) {
+                return EvictionTrimmer.NOT_FOUND;
+            }
+            mSize -= size;
+            mPolicy.onEntryRemoved(key);
+            return EvictionTrimmer.EVICTED;
+        }
+    }
+
+    /**
+     * Hits of one policy at one capacity
+     */
+    private static class Result {
+        private final String mTier;
+        private final String mPolicy;
+        private final long mCapacity;
+        private long mRequests;
+        private long mHits;
+        private long mBytes;
+        private long mHitBytes;
+        private long mAllRequests;
+        private long mAllHits;
+        private long mAllBytes;
+        private long mAllHitBytes;
+
+        Result(String tier, String policy, long capacity) {
+            this.mTier = tier;
+            this.mPolicy = policy;
+            this.mCapacity = capacity;
+        }
+
+        /**
+         * A request that reached the tier
+         */
+        void record(boolean hit, long bytes) {
+            mRequests++;
+            mBytes += bytes;
+            mAllRequests++;
+            mAllBytes += bytes;
+            if (hit) {
+                mHits++;
+                mHitBytes += bytes;
+                mAllHits++;
+                mAllHitBytes += bytes;
+            }
+        }
+
+        /**
+         * A request served by a tier in front of this one
+         */
+        void recordFrontHit(long bytes) {
+            mAllRequests++;
+            mAllHits++;
+            mAllBytes += bytes;
+            mAllHitBytes += bytes;
+        }
+
+        String toCsv(long heap) {
+            return String.format(Locale.US, "%s,%s,%d,%s,%d,%d,%.4f,%.4f,%.4f,%.4f",
+                    mTier, mPolicy, mCapacity,
+                    heap > 0 ? String.format(Locale.US, "%.3f", (double) mCapacity / heap) : "",
+                    mRequests, mHits, ratio(mHits, mRequests), ratio(mHitBytes, mBytes),
+                    ratio(mAllHits, mAllRequests), ratio(mAllHitBytes, mAllBytes));
+        }
+
+        private static double ratio(long part, long whole) {
+            return whole > 0 ? (double) part / whole : 0;
+        }
+    }
+
+    private static class Options {
+        String trace;
+        long[] memory = parseSizes("1m,2m,4m,8m,16m,32m,64m,128m");
+        long[] disk = parseSizes("5m,10m,20m,40m,80m,160m,320m");
+        long frontMemory = parseSize("5m");
+        String[] policies = {POLICY_LRU, POLICY_GDSF, POLICY_GDSF_BYTES};
+        int bytesPerPixel = 4;
+        long heap;
+        int requests = 100000;
+        int urls = 10000;
+        double zipf = 0.8;
+        int size = 60 * 1024;
+        long seed = 42;
+
+        static Options parse(String[] args) {
+            final Options options = new Options();
+            for (String arg : args) {
+                final int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 0) {
+                    throw new IllegalArgumentException("expected --name=value: " + arg);
+                }
+                final String name = arg.substring(2, equals);
+                final String value = arg.substring(equals + 1);
+                if ("trace".equals(name)) {
+                    options.trace = value.length() > 0 ? value : null;
+                } else if ("memory".equals(name)) {
+                    options.memory = parseSizes(value);
+                } else if ("disk".equals(name)) {
+                    options.disk = parseSizes(value);
+                } else if ("front-memory".equals(name)) {
+                    options.frontMemory = parseSize(value);
+                } else if ("policies".equals(name)) {
+                    options.policies = value.split(",");
+                    for (String policy : options.policies) {
+                        newEvictionPolicy(policy);
+                    }
+                } else if ("bytes-per-pixel".equals(name)) {
+                    options.bytesPerPixel = Integer.parseInt(value);
+                } else if ("heap".equals(name)) {
+                    options.heap = parseSize(value);
+                } else if ("requests".equals(name)) {
+                    options.requests = Integer.parseInt(value);
+                } else if ("urls".equals(name)) {
+                    options.urls = Integer.parseInt(value);
+                } else if ("zipf".equals(name)) {
+                    options.zipf = Double.parseDouble(value);
+                } else if ("size".equals(name)) {
+                    options.size = Integer.parseInt(value);
+                } else if ("seed".equals(name)) {
+                    options.seed = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("unknown option: " + arg);
+                }
+            }
+            return options;
+        }
+
+        private static long[] parseSizes(String value) {
+            final String[] parts = value.split(",");
+            final long[] sizes = new long[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                sizes[i] = parseSize(parts[i]);
+            }
+            return sizes;
+        }
+
+        private static long parseSize(String value) {
+            final String lower = value.trim().toLowerCase(Locale.US);
+            final char unit = lower.charAt(lower.length() - 1);
+            final long multiplier = unit == 'k' ? 1024L
+                    : unit == 'm' ? 1024L * 1024 : unit == 'g' ? 1024L * 1024 * 1024 : 1;
+            final String number = multiplier == 1 ? lower : lower.substring(0, lower.length() - 1);
+            return Long.parseLong(number) * multiplier;
+        }
+
+        @Override
+        public String toString() {
+            final String corpus = trace != null ? "trace=" + trace
+                    : "requests=" + requests + " urls=" + urls + " zipf=" + zipf
+                    + " size=" + size + " seed=" + seed;
+            return corpus + " front-memory=" + frontMemory + " bytes-per-pixel=" + bytesPerPixel
+                    + " heap=" + heap;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package vn.hbs.lib.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vn.hbs.lib.cache.CacheEngine;
+import vn.hbs.lib.cache.DiskLruCache;
+import vn.hbs.lib.cache.EncodedImage;
+import vn.hbs.lib.http.ImageDownloader;
+import vn.hbs.lib.util.SlabAllocator;
+import vn.hbs.lib.util.SlabBuffer;
+
+/**
+ * End-to-end benchmark of the fetch pipeline on a plain JVM, against a
+ * {@link SyntheticImageServer} on the loopback interface.
+ * <p>
+ * ImageFetcher itself needs AsyncTask, ImageView and BitmapFactory, so the benchmark drives
+ * the same stages below them: the encoded and disk tiers of a {@link CacheEngine}, with disk
+ * writes behind its write queue, and the {@link ImageDownloader} download into slab buffers.
+ * Bitmap decoding is not measured. Three
+ * scenarios request the whole corpus in a random order from a pool of worker threads:
+ * <ul>
+ *     <li>cold: empty memory and disk caches, every request is downloaded</li>
+ *     <li>warm-disk: the disk cache is opened again and the memory tier is empty</li>
+ *     <li>warm-memory: the same requests again, served from the memory tier</li>
+ * </ul>
+ * Run the main method from the IDE or the test classpath. Options, with their defaults:
+ * <pre>
+ *     --images=200 --size=61440 --latency=40 --bandwidth=2097152 --threads=4
+ *     --memory=33554432 --disk=104857600 --durability=journal --seed=42
+ * </pre>
+ * Bandwidth is in bytes per second per connection, 0 for unlimited. Durability is one of
+ * none, journal or full, see {@link DiskLruCache#setDurability(int)}.
+ */
+public class FetchBenchmark {
+    private static final int CACHE_STATE_MEMORY = 0;
+    private static final int CACHE_STATE_DISK = 1;
+    private static final int CACHE_STATE_MISS = 2;
+    private static final int CACHE_STATE_FAILED = 3;
+
+    // Runs the engine maintenance on the calling thread, so the disk cache is open or closed
+    // when the call returns
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Options mOptions;
+    private final SyntheticImageServer mServer;
+    private final File mDiskCacheDir;
+    private CacheEngine<Object> mEngine;
+
+    public static void main(String[] args) throws Exception {
+        final Options options = Options.parse(args);
+        final FetchBenchmark benchmark = new FetchBenchmark(options);
+        benchmark.run();
+    }
+
+    private FetchBenchmark(Options options) throws IOException {
+        this.mOptions = options;
+        this.mServer = new SyntheticImageServer(options.images, options.size, options.latency,
+                options.bandwidth, options.seed);
+        this.mDiskCacheDir = File.createTempFile("fetch-benchmark", "");
+        mDiskCacheDir.delete();
+        mDiskCacheDir.mkdirs();
+    }
+
+    private void run() throws Exception {
+        mServer.start();
+        try {
+            System.out.println(mOptions);
+            System.out.println(Result.HEADER);
+
+            openEngine();
+            System.out.println(runScenario("cold"));
+
+            closeEngine();
+            openEngine();
+            System.out.println(runScenario("warm-disk"));
+
+            System.out.println(runScenario("warm-memory"));
+        } finally {
+            closeEngine();
+            DiskLruCache.deleteContents(mDiskCacheDir);
+            mDiskCacheDir.delete();
+            mServer.stop();
+        }
+    }
+
+    /**
+     * A new engine with empty memory tiers over the disk cache directory
+     */
+    private void openEngine() {
+        final CacheEngine.Params<Object> params =
+                new CacheEngine.Params<Object>(new CacheEngine.Sizer<Object>() {
+                    @Override
+                    public int sizeOf(String key, Object value) {
+                        return 1;
+                    }
+                });
+        params.setEncodedCacheSize((int) Math.min(mOptions.memory, Integer.MAX_VALUE));
+        params.setDiskCache(mDiskCacheDir, mOptions.disk);
+        params.setDiskCacheDurability(mOptions.durability);
+        mEngine = new CacheEngine<Object>(params, DIRECT_EXECUTOR);
+        mEngine.initDiskCache();
+    }
+
+    private void closeEngine() {
+        if (mEngine != null) {
+            mEngine.evictMemory();
+            mEngine.closeCache();
+            mEngine = null;
+        }
+    }
+
+    private Result runScenario(String name) throws InterruptedException {
+        final List<String> urls = new ArrayList<String>(mServer.getImageCount());
+        for (int i = 0; i < mServer.getImageCount(); i++) {
+            urls.add(mServer.getUrl(i));
+        }
+        Collections.shuffle(urls, new Random(mOptions.seed + name.hashCode()));
+
+        final Result result = new Result(name, urls.size());
+        final long bytesBefore = mServer.getBytesServed();
+        final AtomicInteger next = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(mOptions.threads);
+        final long start = System.nanoTime();
+        for (int t = 0; t < mOptions.threads; t++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = next.getAndIncrement()) < urls.size()) {
+                        final long requestStart = System.nanoTime();
+                        final int cacheState = fetch(urls.get(index));
+                        result.record(index, System.nanoTime() - requestStart, cacheState);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        result.finish(System.nanoTime() - start, mServer.getBytesServed() - bytesBefore);
+        return result;
+    }
+
+    /**
+     * One request through the tiers, like ImageFetcher does below the bitmap memory cache
+     *
+     * @return One of the CACHE_STATE_* values
+     */
+    private int fetch(String url) {
+        final EncodedImage encoded = mEngine.getEncoded(url);
+        if (encoded != null) {
+            encoded.getBuffer().release();
+            return CACHE_STATE_MEMORY;
+        }
+
+        SlabBuffer buffer = null;
+        try {
+            buffer = readFromDisk(url);
+            if (buffer != null) {
+                mEngine.putEncoded(url, buffer, null);
+                return CACHE_STATE_DISK;
+            }
+
+            final long downloadStart = System.nanoTime();
+            buffer = download(url);
+            if (buffer == null) {
+                return CACHE_STATE_FAILED;
+            }
+            mEngine.putEncoded(url, buffer, null);
+            mEngine.putOnDisk(url, buffer, null,
+                    (System.nanoTime() - downloadStart) / 1000000L, 0);
+            return CACHE_STATE_MISS;
+        } catch (IOException e) {
+            return CACHE_STATE_FAILED;
+        } finally {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+
+    private SlabBuffer readFromDisk(String url) throws IOException {
+        final DiskLruCache.Snapshot snapshot = mEngine.getFromDisk(url);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            final InputStream in = snapshot.getInputStream(0);
+            if (!(in instanceof FileInputStream)) {
+                return null;
+            }
+            final FileInputStream fileInputStream = (FileInputStream) in;
+            final int length = (int) fileInputStream.getChannel().size();
+            final SlabBuffer buffer = SlabAllocator.getInstance().allocate(length);
+            if (!buffer.readFrom(fileInputStream.getChannel(), length)) {
+                buffer.release();
+                return null;
+            }
+            return buffer;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private SlabBuffer download(String url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            return ImageDownloader.download(connection, null);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Latencies and cache states of a scenario
+     */
+    private static class Result {
+        static final String HEADER = String.format(Locale.US,
+                "%-12s %8s %10s %9s %9s %12s %7s %7s %7s %7s",
+                "scenario", "requests", "req/s", "p50 ms", "p99 ms", "downloaded", "memory",
+                "disk", "miss", "failed");
+
+        private final String mName;
+        private final long[] mLatencies;
+        private final int[] mCacheStates = new int[4];
+        private long mElapsed;
+        private long mBytesDownloaded;
+
+        private Result(String name, int requestCount) {
+            this.mName = name;
+            this.mLatencies = new long[requestCount];
+        }
+
+        synchronized void record(int index, long latencyNanos, int cacheState) {
+            mLatencies[index] = latencyNanos;
+            mCacheStates[cacheState]++;
+        }
+
+        synchronized void finish(long elapsedNanos, long bytesDownloaded) {
+            this.mElapsed = elapsedNanos;
+            this.mBytesDownloaded = bytesDownloaded;
+            Arrays.sort(mLatencies);
+        }
+
+        private double percentile(double p) {
+            if (mLatencies.length == 0) {
+                return 0;
+            }
+            final int index = (int) Math.min(mLatencies.length - 1,
+                    Math.ceil(p * mLatencies.length) - 1);
+            return mLatencies[Math.max(index, 0)] / 1e6;
+        }
+
+        private String ratio(int cacheState) {
+            return String.format(Locale.US, "%.1f%%",
+                    100.0 * mCacheStates[cacheState] / Math.max(mLatencies.length, 1));
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "%-12s %8d %10.1f %9.2f %9.2f %12d %7s %7s %7s %7s",
+                    mName, mLatencies.length, mLatencies.length / (mElapsed / 1e9),
+                    percentile(0.50), percentile(0.99), mBytesDownloaded,
+                    ratio(CACHE_STATE_MEMORY), ratio(CACHE_STATE_DISK), ratio(CACHE_STATE_MISS),
+                    ratio(CACHE_STATE_FAILED));
+        }
+    }
+
+    private static class Options {
+        int images = 200;
+        int size = 60 * 1024;
+        long latency = 40;
+        long bandwidth = 2 * 1024 * 1024;
+        int threads = 4;
+        long memory = 32 * 1024 * 1024;
+        long disk = 100 * 1024 * 1024;
+        int durability = DiskLruCache.DURABILITY_JOURNAL;
+        long seed = 42;
+
+        static Options parse(String[] args) {
+            final Options options = new Options();
+            for (String arg : args) {
+                final int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 0) {
+                    throw new IllegalArgumentException("expected --name=value: " + arg);
+                }
+                final String name = arg.substring(2, equals);
+                final String value = arg.substring(equals + 1);
+                if ("images".equals(name)) {
+                    options.images = Integer.parseInt(value);
+                } else if ("size".equals(name)) {
+                    options.size = Integer.parseInt(value);
+                } else if ("latency".equals(name)) {
+                    options.latency = Long.parseLong(value);
+                } else if ("bandwidth".equals(name)) {
+                    options.bandwidth = Long.parseLong(value);
+                } else if ("threads".equals(name)) {
+                    options.threads = Integer.parseInt(value);
+                } else if ("memory".equals(name)) {
+                    options.memory = Long.parseLong(value);
+                } else if ("disk".equals(name)) {
+                    options.disk = Long.parseLong(value);
+                } else if ("durability".equals(name)) {
+                    options.durability = parseDurability(value);
+                } else if ("seed".equals(name)) {
+                    options.seed = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("unknown option: " + arg);
+                }
+            }
+            return options;
+        }
+
+        private static int parseDurability(String value) {
+            if ("none".equals(value)) {
+                return DiskLruCache.DURABILITY_NONE;
+            } else if ("journal".equals(value)) {
+                return DiskLruCache.DURABILITY_JOURNAL;
+            } else if ("full".equals(value)) {
+                return DiskLruCache.DURABILITY_FULL;
+            }
+            throw new IllegalArgumentException("unknown durability: " + value);
+        }
+
+        @Override
+        public String toString() {
+            return "images=" + images + " size=" + size + " latency=" + latency
+                    + " bandwidth=" + bandwidth + " threads=" + threads + " memory=" + memory
+                    + " disk=" + disk + " durability=" + durability + " seed=" + seed;
+        }
+    }
+}
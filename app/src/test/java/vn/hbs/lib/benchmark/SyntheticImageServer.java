@@ -0,0 +1,147 @@
+package vn.hbs.lib.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP stand-in for an image host, serving a synthetic corpus of JPEG-like bodies at
+ * /images/&lt;index&gt;.jpg. Each response waits a fixed latency before its headers, then the
+ * body is sent at a limited bandwidth per connection.
+ */
+class SyntheticImageServer {
+    private static final String PATH_PREFIX = "/images/";
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final byte[][] mCorpus;
+    private final long mLatencyMillis;
+    private final long mBytesPerSecond;
+    private final AtomicLong mBytesServed = new AtomicLong();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    /**
+     * @param imageCount Size of the corpus
+     * @param meanSize Mean body size in bytes, sizes are spread from a third to twice of it
+     * @param latencyMillis Time to first byte of each response
+     * @param bytesPerSecond Bandwidth of each connection, 0 for unlimited
+     * @param seed Seed of the corpus, the same seed serves the same bytes
+     */
+    SyntheticImageServer(int imageCount, int meanSize, long latencyMillis, long bytesPerSecond,
+                         long seed) {
+        this.mLatencyMillis = latencyMillis;
+        this.mBytesPerSecond = bytesPerSecond;
+        this.mCorpus = new byte[imageCount][];
+        final Random random = new Random(seed);
+        for (int i = 0; i < imageCount; i++) {
+            final int size = (int) (meanSize * (0.33 + random.nextDouble() * 1.67));
+            mCorpus[i] = newJpegLikeBody(Math.max(size, 16), random);
+        }
+    }
+
+    void start() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.createContext(PATH_PREFIX, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.start();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    int getImageCount() {
+        return mCorpus.length;
+    }
+
+    String getUrl(int index) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + PATH_PREFIX + index + ".jpg";
+    }
+
+    long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        mRequestCount.incrementAndGet();
+        try {
+            final String path = exchange.getRequestURI().getPath();
+            int index = -1;
+            try {
+                index = Integer.parseInt(path.substring(PATH_PREFIX.length(), path.length() - 4));
+            } catch (RuntimeException e) {
+                // Not an image of the corpus
+            }
+            if (index < 0 || index >= mCorpus.length) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            sleep(mLatencyMillis);
+            final byte[] body = mCorpus[index];
+            exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+            exchange.sendResponseHeaders(200, body.length);
+            final OutputStream out = exchange.getResponseBody();
+            final long start = System.nanoTime();
+            for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+                final int count = Math.min(CHUNK_SIZE, body.length - offset);
+                out.write(body, offset, count);
+                mBytesServed.addAndGet(count);
+                if (mBytesPerSecond > 0) {
+                    // Hold the next chunk until the bandwidth allows it
+                    final long due = (offset + count) * 1000L / mBytesPerSecond;
+                    sleep(due - (System.nanoTime() - start) / 1000000L);
+                }
+            }
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Random bytes framed by the JPEG start and end markers
+     */
+    private static byte[] newJpegLikeBody(int size, Random random) {
+        final byte[] body = new byte[size];
+        random.nextBytes(body);
+        body[0] = (byte) 0xFF;
+        body[1] = (byte) 0xD8;
+        body[2] = (byte) 0xFF;
+        body[3] = (byte) 0xE0;
+        body[size - 2] = (byte) 0xFF;
+        body[size - 1] = (byte) 0xD9;
+        return body;
+    }
+}
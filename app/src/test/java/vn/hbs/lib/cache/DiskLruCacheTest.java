@@ -0,0 +1,192 @@
+package vn.hbs.lib.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Journal persistence of the disk cache: the attributes of the CLEAN records and the
+ * compaction that runs while the cache is being edited.
+ */
+public class DiskLruCacheTest {
+    private static final int APP_VERSION = 100;
+    private static final long MAX_SIZE = 10 * 1024 * 1024;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("DiskLruCacheTest", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DiskLruCache.deleteContents(mDirectory);
+        mDirectory.delete();
+    }
+
+    @Test
+    public void journalRoundTripKeepsAttributes() throws Exception {
+        final long expiresAt = System.currentTimeMillis() + 60 * 60 * 1000;
+        DiskLruCache cache = open();
+        commit(cache, "k1", "ABC", "640x480", 250, expiresAt);
+        for (int i = 0; i < 3; i++) {
+            cache.get("k1").close();
+        }
+        final double frequency = cache.getFrequency("k1");
+        cache.close();
+
+        final String journal = readJournal();
+        assertTrue(journal, journal.contains("CLEAN k1 3 meta=640x480 cost=250 exp=" + expiresAt));
+        assertTrue(journal, journal.contains("READ k1"));
+
+        cache = open();
+        assertEquals("640x480", cache.getMetadata("k1"));
+        assertEquals(frequency, cache.getFrequency("k1"), 0.01);
+        assertEquals(3, cache.size());
+        final DiskLruCache.Snapshot snapshot = cache.get("k1");
+        assertEquals("ABC", snapshot.getString(0));
+        assertEquals("640x480", snapshot.getMetadata());
+        snapshot.close();
+        cache.close();
+    }
+
+    @Test
+    public void compactedJournalKeepsAttributes() throws Exception {
+        final long expiresAt = System.currentTimeMillis() + 60 * 60 * 1000;
+        DiskLruCache cache = open();
+        commit(cache, "k1", "ABC", "640x480", 250, expiresAt);
+        commit(cache, "k2", "DE", null, 0, 0);
+        cache.get("k1").close();
+        cache.get("k1").close();
+        cache.compactJournal();
+        cache.close();
+
+        final String journal = readJournal();
+        assertFalse(journal, journal.contains("READ"));
+        assertTrue(journal, journal.contains("CLEAN k1 3 meta=640x480 cost=250 freq="));
+        assertTrue(journal, journal.contains(" exp=" + expiresAt));
+        assertTrue(journal, journal.contains("CLEAN k2 2\n"));
+
+        cache = open();
+        assertEquals("640x480", cache.getMetadata("k1"));
+        assertEquals(2, cache.getFrequency("k1"), 0.01);
+        assertNull(cache.getMetadata("k2"));
+        assertEquals(5, cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void expiredEntryIsNotReadAfterReopen() throws Exception {
+        DiskLruCache cache = open();
+        commit(cache, "k1", "ABC", "640x480", 0, System.currentTimeMillis() + 200);
+        cache.close();
+
+        Thread.sleep(300);
+        cache = open();
+        assertNull(cache.getMetadata("k1"));
+        cache.close();
+    }
+
+    @Test
+    public void fullDurabilityCommitsSurviveReopen() throws Exception {
+        DiskLruCache cache = open();
+        cache.setDurability(DiskLruCache.DURABILITY_FULL);
+        commit(cache, "k1", "ABC", "640x480", 250, 0);
+        commit(cache, "k2", "DE", "16x16", 0, 0);
+        cache.edit("k3").abort();
+        cache.compactJournal();
+        commit(cache, "k1", "FGH", "320x240", 250, 0);
+        cache.close();
+
+        cache = open();
+        assertEquals("320x240", cache.getMetadata("k1"));
+        assertEquals("16x16", cache.getMetadata("k2"));
+        assertNull(cache.get("k3"));
+        assertEquals(5, cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void appendsDuringCompactionSurviveTheSwap() throws Exception {
+        final int keyCount = 100;
+        final String[] values = new String[keyCount];
+        final DiskLruCache cache = open();
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        final Thread editor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; !stop.get(); i++) {
+                        final int key = i % keyCount;
+                        final String value = "v" + i;
+                        commit(cache, "k" + key, value, "m" + i, i, 0);
+                        values[key] = value;
+                        if (i % 3 == 0) {
+                            cache.get("k" + key).close();
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        editor.start();
+        for (int i = 0; i < 50; i++) {
+            cache.compactJournal();
+            Thread.sleep(2);
+        }
+        stop.set(true);
+        editor.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        cache.close();
+
+        final DiskLruCache reopened = open();
+        for (int key = 0; key < keyCount; key++) {
+            final String value = values[key];
+            if (value == null) {
+                continue;
+            }
+            final DiskLruCache.Snapshot snapshot = reopened.get("k" + key);
+            assertNotNull("k" + key, snapshot);
+            assertEquals(value, snapshot.getString(0));
+            assertEquals("m" + value.substring(1), snapshot.getMetadata());
+            snapshot.close();
+        }
+        reopened.close();
+    }
+
+    private DiskLruCache open() throws IOException {
+        return DiskLruCache.open(mDirectory, APP_VERSION, 1, MAX_SIZE);
+    }
+
+    private static void commit(DiskLruCache cache, String key, String value, String metadata,
+                               long cost, long expiresAt) throws IOException {
+        final DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.setMetadata(metadata);
+        editor.setCost(cost);
+        editor.setExpiresAt(expiresAt);
+        editor.commit();
+    }
+
+    private String readJournal() throws IOException {
+        return DiskLruCache.readFully(new InputStreamReader(
+                new FileInputStream(new File(mDirectory, "journal")), "US-ASCII"));
+    }
+}
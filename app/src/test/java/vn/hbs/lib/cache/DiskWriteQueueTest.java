@@ -0,0 +1,192 @@
+package vn.hbs.lib.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import vn.hbs.lib.util.SlabAllocator;
+import vn.hbs.lib.util.SlabBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Coalescing, dropping when full and flushing of the write-behind queue. The queue is paused
+ * while a test fills it, so that the writer doesn't take anything before it is checked.
+ */
+public class DiskWriteQueueTest {
+    private static final int KB = 1024;
+    private static final int MAX_PENDING_WRITES = 64;
+
+    private final SlabAllocator mAllocator = new SlabAllocator(16 * 1024 * KB);
+    private final List<String> mWritten = Collections.synchronizedList(new ArrayList<String>());
+    private DiskWriteQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new DiskWriteQueue(new DiskWriteQueue.Writer() {
+            @Override
+            public void write(List<DiskWriteQueue.PendingWrite> batch) {
+                for (DiskWriteQueue.PendingWrite write : batch) {
+                    mWritten.add(write.data + ":" + write.metadata);
+                }
+            }
+        });
+        mQueue.setPaused(true);
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.clear();
+        mQueue.shutdown();
+    }
+
+    @Test
+    public void coalescesWritesOfTheSameImage() {
+        assertTrue(enqueue("a", KB, 10, "first"));
+        assertTrue(enqueue("a", 2 * KB, 10, "second"));
+
+        final DiskWriteQueue.PendingWrite pending = mQueue.get("a");
+        assertEquals("second", pending.metadata);
+        assertEquals(2 * KB, pending.buffer.size());
+        pending.buffer.release();
+
+        mQueue.drain();
+        assertEquals(Collections.singletonList("a:second"), mWritten);
+        assertNull(mQueue.get("a"));
+    }
+
+    @Test
+    public void dropsLowestValueWhenFull() {
+        for (int i = 0; i < MAX_PENDING_WRITES - 1; i++) {
+            assertTrue(enqueue("image" + i, KB, 10, null));
+        }
+        assertTrue(enqueue("cheap", KB, 5, null));
+
+        // Worth more per byte than any pending write, takes the place of the cheapest one
+        assertTrue(enqueue("valuable", KB, 1000, null));
+        assertNull(mQueue.get("cheap"));
+        assertGetAndRelease("valuable");
+
+        mQueue.drain();
+        assertEquals(MAX_PENDING_WRITES, mWritten.size());
+        assertTrue(mWritten.contains("valuable:null"));
+        assertFalse(mWritten.contains("cheap:null"));
+    }
+
+    @Test
+    public void dropsNewWriteWorthLessThanThePendingOnes() {
+        for (int i = 0; i < MAX_PENDING_WRITES; i++) {
+            assertTrue(enqueue("image" + i, KB, 10, null));
+        }
+
+        assertFalse(enqueue("cheap", KB, 5, null));
+        assertNull(mQueue.get("cheap"));
+
+        mQueue.drain();
+        assertEquals(MAX_PENDING_WRITES, mWritten.size());
+        assertFalse(mWritten.contains("cheap:null"));
+    }
+
+    @Test
+    public void dropsToStayUnderTheByteLimit() {
+        // 4MB in all, the value of a write is per byte so the larger one is worth less
+        assertTrue(enqueue("a", 1024 * KB, 100, null));
+        assertTrue(enqueue("b", 1024 * KB, 100, null));
+        assertTrue(enqueue("c", 1024 * KB, 100, null));
+        assertTrue(enqueue("d", 1000 * KB, 50, null));
+
+        assertTrue(enqueue("e", 512 * KB, 100, null));
+        assertNull(mQueue.get("d"));
+
+        mQueue.drain();
+        assertEquals(Arrays.asList("a:null", "b:null", "c:null", "e:null"), mWritten);
+    }
+
+    @Test
+    public void pendingWriteIsReadableUntilWritten() {
+        assertTrue(enqueue("a", KB, 10, "meta"));
+        final DiskWriteQueue.PendingWrite pending = mQueue.get("a");
+        assertNotNull(pending);
+        assertEquals(KB, pending.buffer.toByteArray(KB).length);
+        pending.buffer.release();
+        assertTrue(mWritten.isEmpty());
+
+        mQueue.drain();
+        assertNull(mQueue.get("a"));
+    }
+
+    @Test
+    public void drainWritesWhilePaused() {
+        assertTrue(enqueue("a", KB, 10, null));
+        assertTrue(enqueue("b", KB, 10, null));
+
+        mQueue.drain();
+        assertEquals(Arrays.asList("a:null", "b:null"), mWritten);
+    }
+
+    @Test
+    public void requestFlushRunsAfterTheQueuedWrites() throws Exception {
+        assertTrue(enqueue("a", KB, 10, null));
+        assertTrue(enqueue("b", KB, 10, null));
+
+        final CountDownLatch flushed = new CountDownLatch(1);
+        final List<String> writtenOnFlush = new ArrayList<String>();
+        mQueue.requestFlush(new Runnable() {
+            @Override
+            public void run() {
+                writtenOnFlush.addAll(mWritten);
+                flushed.countDown();
+            }
+        });
+
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a:null", "b:null"), writtenOnFlush);
+    }
+
+    @Test
+    public void requestFlushRunsInlineWhenIdle() {
+        final Thread caller = Thread.currentThread();
+        final Thread[] ranOn = new Thread[1];
+        mQueue.requestFlush(new Runnable() {
+            @Override
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+            }
+        });
+        assertSame(caller, ranOn[0]);
+    }
+
+    @Test
+    public void writesResumeWhenUnpaused() throws Exception {
+        assertTrue(enqueue("a", KB, 10, null));
+        Thread.sleep(50);
+        assertTrue(mWritten.isEmpty());
+
+        mQueue.setPaused(false);
+        mQueue.drain();
+        assertEquals(Collections.singletonList("a:null"), mWritten);
+    }
+
+    private boolean enqueue(String data, int size, long cost, String metadata) {
+        final SlabBuffer buffer = mAllocator.allocate(size);
+        buffer.write(new byte[size], 0, size);
+        try {
+            return mQueue.enqueue(data, buffer, metadata, cost, 0);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private void assertGetAndRelease(String data) {
+        final DiskWriteQueue.PendingWrite pending = mQueue.get(data);
+        assertNotNull(data, pending);
+        pending.buffer.release();
+    }
+}
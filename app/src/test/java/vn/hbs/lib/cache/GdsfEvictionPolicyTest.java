@@ -0,0 +1,103 @@
+package vn.hbs.lib.cache;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Victim order of the Greedy-Dual-Size-Frequency policy: frequency * cost / size, raised by
+ * the priority of the last victim.
+ */
+public class GdsfEvictionPolicyTest {
+
+    @Test
+    public void evictsLowestCostPerByteFirst() {
+        final GdsfEvictionPolicy policy = new GdsfEvictionPolicy();
+        policy.onEntryAdded("small", 100, 1, 0);       // 0.01
+        policy.onEntryAdded("large", 10000, 1, 0);     // 0.0001
+        policy.onEntryAdded("costly", 10000, 1000, 0); // 0.1
+
+        assertEquals("large", evict(policy));
+        assertEquals("small", evict(policy));
+        assertEquals("costly", evict(policy));
+        assertNull(policy.selectVictim(lruKeys()));
+    }
+
+    @Test
+    public void accessKeepsAnEntry() {
+        final GdsfEvictionPolicy policy = new GdsfEvictionPolicy();
+        policy.onEntryAdded("a", 100, 1, 0);
+        policy.onEntryAdded("b", 100, 1, 0);
+        policy.onEntryAccessed("a");
+
+        assertEquals("b", evict(policy));
+        assertEquals("a", evict(policy));
+    }
+
+    @Test
+    public void equalPriorityEvictsTheOldestFirst() {
+        final GdsfEvictionPolicy policy = new GdsfEvictionPolicy();
+        policy.onEntryAdded("a", 100, 1, 0);
+        policy.onEntryAdded("b", 100, 1, 0);
+        policy.onEntryAdded("c", 100, 1, 0);
+
+        assertEquals("a", evict(policy));
+        assertEquals("b", evict(policy));
+        assertEquals("c", evict(policy));
+    }
+
+    @Test
+    public void longTermFrequencyCountsOnAdd() {
+        final GdsfEvictionPolicy policy = new GdsfEvictionPolicy();
+        policy.onEntryAdded("popular", 100, 1, 9); // frequency 10
+        policy.onEntryAdded("new", 100, 5, 0);     // frequency 1, five times the cost
+
+        assertEquals("new", evict(policy));
+    }
+
+    @Test
+    public void inflationAgesOutStaleEntries() {
+        final GdsfEvictionPolicy policy = new GdsfEvictionPolicy(GdsfEvictionPolicy.BYTE_HIT_RATIO);
+        policy.onEntryAdded("stale", 100, 3, 0); // 3
+        policy.onEntryAdded("b", 100, 2, 0);     // 2
+        assertEquals("b", evict(policy));
+
+        // Worth less than the stale entry on its own, but added after the eviction of b
+        policy.onEntryAdded("c", 100, 2, 0);     // 2 + 2
+        assertEquals("stale", evict(policy));
+        assertEquals("c", evict(policy));
+    }
+
+    @Test
+    public void sizeExponentTradesObjectForByteHits() {
+        final GdsfEvictionPolicy objects = new GdsfEvictionPolicy(GdsfEvictionPolicy.OBJECT_HIT_RATIO);
+        objects.onEntryAdded("small", 10, 1, 0);
+        objects.onEntryAdded("large", 1000000, 2, 0);
+        assertEquals("large", evict(objects));
+
+        final GdsfEvictionPolicy bytes = new GdsfEvictionPolicy(GdsfEvictionPolicy.BYTE_HIT_RATIO);
+        bytes.onEntryAdded("small", 10, 1, 0);
+        bytes.onEntryAdded("large", 1000000, 2, 0);
+        assertEquals("small", evict(bytes));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizeExponentAboveOne() {
+        new GdsfEvictionPolicy(1.5);
+    }
+
+    private static String evict(EvictionPolicy policy) {
+        final String victim = policy.selectVictim(lruKeys());
+        if (victim != null) {
+            policy.onEntryRemoved(victim);
+        }
+        return victim;
+    }
+
+    private static Iterator<String> lruKeys() {
+        return Collections.<String>emptyList().iterator();
+    }
+}
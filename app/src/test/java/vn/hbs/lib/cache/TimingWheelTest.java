@@ -0,0 +1,116 @@
+package vn.hbs.lib.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Deadlines of the timing wheel: in level 0, moved down through the higher levels, parked
+ * past the top level, rescheduled and cancelled.
+ */
+public class TimingWheelTest {
+    private static final long TICK = 1000;
+    // Not aligned to a turn of any level, so the cascades don't line up with the start
+    private static final long START = 123457L * TICK;
+
+    @Test
+    public void expiresWithinLevelZero() {
+        final TimingWheel wheel = new TimingWheel(TICK, START);
+        wheel.schedule("a", START + 5 * TICK);
+        assertTrue(wheel.advance(START + 5 * TICK - 1).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(START + 5 * TICK));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void expiresOnTimeAcrossLevelCascades() {
+        final TimingWheel wheel = new TimingWheel(TICK, START);
+        // One deadline per level: less than 64 ticks, 64^2, 64^3 and 64^4 ticks away
+        final Map<String, Long> deadlines = new HashMap<String, Long>();
+        deadlines.put("level0", START + 40 * TICK);
+        deadlines.put("level1", START + 100 * TICK + 300);
+        deadlines.put("level2", START + 5000 * TICK);
+        deadlines.put("level3", START + 300000 * TICK + 999);
+        for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+            wheel.schedule(entry.getKey(), entry.getValue());
+        }
+
+        // Tick by tick, so that every key goes down through each level it was placed above
+        final Map<String, Long> expiredAt = new HashMap<String, Long>();
+        for (long now = START + TICK; !wheel.isEmpty(); now += TICK) {
+            for (String key : wheel.advance(now)) {
+                expiredAt.put(key, now);
+            }
+            assertTrue("never expired", now < START + 400000 * TICK);
+        }
+
+        for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+            final long deadline = entry.getValue();
+            final long expired = expiredAt.get(entry.getKey());
+            assertTrue(entry.getKey() + " expired early", expired >= deadline);
+            assertTrue(entry.getKey() + " expired late", expired - deadline < TICK);
+        }
+    }
+
+    @Test
+    public void expiresAfterLongGaps() {
+        final TimingWheel wheel = new TimingWheel(TICK, START);
+        wheel.schedule("a", START + 100 * TICK);
+        wheel.schedule("b", START + 10000 * TICK);
+        wheel.schedule("c", START + 10001 * TICK);
+
+        assertTrue(wheel.advance(START + 99 * TICK).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(START + 9999 * TICK));
+        assertEquals(Collections.singletonList("b"), wheel.advance(START + 10000 * TICK));
+        assertEquals(Collections.singletonList("c"), wheel.advance(START + 20000 * TICK));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void deadlineBeyondTheTopLevelIsPlacedAgain() {
+        final TimingWheel wheel = new TimingWheel(TICK, START);
+        // Twice what the four levels can reach
+        final long deadline = START + (1L << 25) * TICK;
+        wheel.schedule("far", deadline);
+
+        assertTrue(wheel.advance(START + (1L << 24) * TICK).isEmpty());
+        assertTrue(wheel.advance(deadline - TICK).isEmpty());
+        for (long now = deadline - 10 * TICK; now < deadline; now += TICK) {
+            assertTrue(wheel.advance(now).isEmpty());
+        }
+        assertEquals(Collections.singletonList("far"), wheel.advance(deadline));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void rescheduleReplacesAndCancelRemoves() {
+        final TimingWheel wheel = new TimingWheel(TICK, START);
+        wheel.schedule("a", START + 10 * TICK);
+        wheel.schedule("b", START + 10 * TICK);
+        wheel.schedule("c", START + 10 * TICK);
+        wheel.schedule("a", START + 200 * TICK);
+        wheel.cancel("b");
+
+        assertEquals(Collections.singletonList("c"), wheel.advance(START + 10 * TICK));
+        final List<String> expired = new ArrayList<String>();
+        for (long now = START + 11 * TICK; now <= START + 200 * TICK; now += TICK) {
+            expired.addAll(wheel.advance(now));
+        }
+        assertEquals(Collections.singletonList("a"), expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void pastDeadlineExpiresOnNextTick() {
+        final TimingWheel wheel = new TimingWheel(TICK, START);
+        wheel.schedule("a", START - TICK);
+        assertTrue(wheel.advance(START).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(START + TICK));
+    }
+}